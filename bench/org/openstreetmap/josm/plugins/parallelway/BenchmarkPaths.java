@@ -0,0 +1,67 @@
+/*
+ * Encoding: UTF-8
+ * Licence:  GPL v2 or later
+ * Author:   Ole Jørgen Brønner <olejorgen@yahoo.no>, 2011
+ */
+
+package org.openstreetmap.josm.plugins.parallelway;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.projection.Mercator;
+
+/**
+ * Setup shared by the benchmarks and the kernel check. Doesn't use JMH, so
+ * the check can be built without it.
+ */
+class BenchmarkPaths {
+    static void initJosm() {
+        if (Main.pref == null) {
+            Main.pref = new Preferences();
+        }
+        if (Main.proj == null) {
+            Main.proj = new Mercator();
+        }
+    }
+
+    /**
+     * A path of nodeCount nodes split into (at most) wayCount ways. Open paths
+     * are a sine wave, closed paths a circle.
+     */
+    static List<Way> makePath(int nodeCount, int wayCount, boolean closed) {
+        int segments = nodeCount - 1;
+        wayCount = Math.max(1, Math.min(wayCount, segments));
+        List<Node> nodes = new ArrayList<Node>(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            EastNorth en;
+            if (closed && i == nodeCount - 1) {
+                nodes.add(nodes.get(0));
+                continue;
+            } else if (closed) {
+                double a = 2 * Math.PI * i / segments;
+                en = new EastNorth(1000 * Math.cos(a), 1000 * Math.sin(a));
+            } else {
+                en = new EastNorth(i * 10.0, 50 * Math.sin(i * 0.1));
+            }
+            nodes.add(new Node(en));
+        }
+
+        List<Way> result = new ArrayList<Way>(wayCount);
+        for (int w = 0; w < wayCount; w++) {
+            int from = (int) ((long) segments * w / wayCount);
+            int to = (int) ((long) segments * (w + 1) / wayCount);
+            Way way = new Way();
+            for (int i = from; i <= to; i++) {
+                way.addNode(nodes.get(i));
+            }
+            result.add(way);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Encoding: UTF-8
+ * Licence:  GPL v2 or later
+ * Author:   Ole Jørgen Brønner <olejorgen@yahoo.no>, 2011
+ */
+
+package org.openstreetmap.josm.plugins.parallelway;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+
+/**
+ * Checks the miter kernel of ParallelWays.computeOffset on random paths:
+ *
+ * - The same-index loops give bit-identical results to the element-wise loop
+ *   (used when the positions don't start at their vertex index).
+ * - The parallel chunks give bit-identical results to the calling thread.
+ * - Both match the original per-vertex formula, the intersection of the
+ *   lines parallel to the neighboring segments, up to rounding.
+ * - With the join preferences of the mode at their defaults (miter limit 4),
+ *   paths without corners beyond the limit still use the miter loops, and
+ *   paths with such corners only differ from them by the bevels.
+ *
+ * Run with 'ant bench-check'. Exits with status 1 on a mismatch.
+ */
+public class OffsetKernelCheck {
+    private static final int PATHS = 500;
+    // Largest allowed difference from the line intersections, relative to the size of the coordinates
+    private static final double TOLERANCE = 1e-9;
+    // Corners sharper than this (sine of the angle between the segments) make the intersection ill-conditioned
+    private static final double MIN_SINE = 1e-3;
+
+    private static int failures;
+    private static int beveledPaths;
+
+    public static void main(String[] args) {
+        BenchmarkPaths.initJosm();
+        Random random = new Random(args.length > 0 ? Long.parseLong(args[0]) : 1);
+        for (int k = 0; k < PATHS; k++) {
+            // A few paths large enough to be split into chunks
+            int nodes = k % 50 == 0 ? 30000 + random.nextInt(40000) : 3 + random.nextInt(500);
+            int ways = 1 + random.nextInt(Math.min(nodes - 1, 20));
+            boolean closed = nodes >= 4 && random.nextBoolean();
+            ParallelWays pWays = new ParallelWays(makeRandomPath(random, nodes, ways, closed), false, 0);
+            double d = (random.nextDouble() - 0.5) * 200;
+            check(k, pWays, d);
+        }
+        checkSmoothPaths();
+        System.out.println(failures == 0 ? "OK: " + PATHS + " paths, " + beveledPaths + " with beveled corners"
+                : failures + " mismatches");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void check(int k, ParallelWays pWays, double d) {
+        int n = pWays.getNodeCount();
+
+        //// Same-index loops, sequential
+        pWays.setParallelThreshold(Integer.MAX_VALUE);
+        double[] x = new double[n], y = new double[n];
+        pWays.computeOffset(d, x, y, 0, null);
+
+        //// Element-wise loop: the positions start after a gap
+        int gap = 7;
+        double[] shiftedX = new double[n + gap], shiftedY = new double[n + gap];
+        pWays.computeOffset(d, shiftedX, shiftedY, gap, null);
+        for (int i = 0; i < n; i++) {
+            if (!same(x[i], shiftedX[gap + i]) || !same(y[i], shiftedY[gap + i])) {
+                fail(k, "element-wise loop differs at vertex " + i);
+                break;
+            }
+        }
+
+        //// Parallel chunks
+        pWays.setParallelThreshold(0);
+        double[] chunkedX = new double[n], chunkedY = new double[n];
+        pWays.computeOffset(d, chunkedX, chunkedY, 0, null);
+        for (int i = 0; i < n; i++) {
+            if (!same(x[i], chunkedX[i]) || !same(y[i], chunkedY[i])) {
+                fail(k, "parallel chunks differ at vertex " + i);
+                break;
+            }
+        }
+
+        //// The original formula
+        boolean closed = pWays.isClosedPath();
+        for (int i = 0; i < n; i++) {
+            int prev = i - 1, next = i + 1;
+            if (closed && i == 0) {
+                prev = n - 2;
+            } else if (closed && i == n - 1) {
+                prev = n - 2;
+                next = 1;
+            }
+            double[] expected = closed || (i > 0 && i < n - 1) ? intersection(pWays, prev, i, next, d)
+                    : endPoint(pWays, i, d);
+            if (expected == null) {
+                continue; // Parallel or nearly so
+            }
+            // The error of the intersection grows as the corner gets sharper
+            double sine = expected.length > 2 ? expected[2] : 1;
+            double scale = 1 + Math.abs(pWays.getPointX(i)) + Math.abs(pWays.getPointY(i)) + Math.abs(d) / sine;
+            if (Math.abs(expected[0] - x[i]) > TOLERANCE * scale || Math.abs(expected[1] - y[i]) > TOLERANCE * scale) {
+                fail(k, "vertex " + i + " is at (" + x[i] + ", " + y[i] + "), expected (" + expected[0] + ", "
+                        + expected[1] + ")");
+                break;
+            }
+        }
+
+        checkDefaultJoins(k, pWays, d, x, y);
+    }
+
+    /**
+     * Compares the offset with the join preferences of the mode at their
+     * defaults to the plain miters x, y. Resets the join settings afterwards.
+     */
+    private static void checkDefaultJoins(int k, ParallelWays pWays, double d, double[] x, double[] y) {
+        int n = pWays.getNodeCount();
+        pWays.setParallelThreshold(Integer.MAX_VALUE);
+        ParallelWayMode.applyJoinPreferences(pWays, 1);
+        int max = pWays.getMaxOutputCount();
+        double[] jx = new double[max], jy = new double[max];
+        int[] source = new int[max];
+        int count = pWays.computeOffset(d, jx, jy, 0, source);
+        if (max == n) {
+            // No corner exceeds the limit, so this must have been the miter loop
+            if (count != n) {
+                fail(k, "no corner exceeds the miter limit, but got " + count + " positions for " + n + " vertices");
+            }
+        } else {
+            beveledPaths++;
+        }
+
+        boolean closed = pWays.isClosedPath();
+        for (int j = 0; j < count; j++) {
+            int i = source[j];
+            if (closed && i == n - 1) {
+                if (!same(jx[j], jx[0]) || !same(jy[j], jy[0])) {
+                    fail(k, "the last position of the closed path isn't the first");
+                }
+                continue;
+            }
+            if (j + 1 < count && source[j + 1] == i) {
+                //// A bevel from the offset of the incoming segment to the offset of the outgoing one
+                double[] n0 = normal(pWays, i == 0 ? n - 2 : i - 1, i == 0 ? n - 1 : i);
+                double[] n1 = normal(pWays, i, i + 1);
+                double scale = TOLERANCE * (1 + Math.abs(pWays.getPointX(i)) + Math.abs(pWays.getPointY(i))
+                        + Math.abs(d));
+                if (j + 2 < count && source[j + 2] == i
+                        || Math.abs(jx[j] - (pWays.getPointX(i) + d * n0[0])) > scale
+                        || Math.abs(jy[j] - (pWays.getPointY(i) + d * n0[1])) > scale
+                        || Math.abs(jx[j + 1] - (pWays.getPointX(i) + d * n1[0])) > scale
+                        || Math.abs(jy[j + 1] - (pWays.getPointY(i) + d * n1[1])) > scale) {
+                    fail(k, "the bevel at vertex " + i + " is wrong");
+                    break;
+                }
+                j++;
+                continue;
+            }
+            if (!same(jx[j], x[i]) || !same(jy[j], y[i])) {
+                fail(k, "vertex " + i + " differs from its miter with the default join preferences");
+                break;
+            }
+        }
+
+        //// Parallel chunks of the join path
+        pWays.setParallelThreshold(0);
+        double[] chunkedX = new double[max], chunkedY = new double[max];
+        int chunkedCount = pWays.computeOffset(d, chunkedX, chunkedY, 0, null);
+        if (chunkedCount != count) {
+            fail(k, "parallel chunks give " + chunkedCount + " positions instead of " + count);
+        } else {
+            for (int j = 0; j < count; j++) {
+                if (!same(jx[j], chunkedX[j]) || !same(jy[j], chunkedY[j])) {
+                    fail(k, "parallel chunks differ at position " + j + " with the default join preferences");
+                    break;
+                }
+            }
+        }
+
+        pWays.setJoinStyle(ParallelWays.JoinStyle.MITER);
+        pWays.setMiterLimit(Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * The smooth paths of the benchmark have no corner near the default
+     * miter limit, so they must be offset by the miter loops.
+     */
+    private static void checkSmoothPaths() {
+        int k = PATHS;
+        for (boolean closed : new boolean[] { false, true }) {
+            for (int nodes : new int[] { 10, 1000, 100000 }) {
+                ParallelWays pWays = new ParallelWays(BenchmarkPaths.makePath(nodes, 100, closed), false, 0);
+                ParallelWayMode.applyJoinPreferences(pWays, 1);
+                if (pWays.getMaxOutputCount() != nodes) {
+                    fail(k, "the smooth " + (closed ? "closed" : "open") + " path of " + nodes
+                            + " nodes doesn't use the miter loops with the default join preferences");
+                }
+                k++;
+            }
+        }
+    }
+
+    /**
+     * The intersection of the lines parallel to the segments prev-i and i-next, offset by d
+     *
+     * @return {x, y, sine of the angle between the segments}
+     */
+    private static double[] intersection(ParallelWays pWays, int prev, int i, int next, double d) {
+        double[] n0 = normal(pWays, prev, i);
+        double[] n1 = normal(pWays, i, next);
+        // Lines A0 + s * r0 and A1 + t * r1
+        double a0x = pWays.getPointX(prev) + d * n0[0], a0y = pWays.getPointY(prev) + d * n0[1];
+        double r0x = pWays.getPointX(i) - pWays.getPointX(prev), r0y = pWays.getPointY(i) - pWays.getPointY(prev);
+        double a1x = pWays.getPointX(i) + d * n1[0], a1y = pWays.getPointY(i) + d * n1[1];
+        double r1x = pWays.getPointX(next) - pWays.getPointX(i), r1y = pWays.getPointY(next) - pWays.getPointY(i);
+        double cross = r0x * r1y - r0y * r1x;
+        double sine = Math.abs(cross) / (Math.hypot(r0x, r0y) * Math.hypot(r1x, r1y));
+        if (sine < MIN_SINE)
+            return null;
+        double s = ((a1x - a0x) * r1y - (a1y - a0y) * r1x) / cross;
+        return new double[] { a0x + s * r0x, a0y + s * r0y, sine };
+    }
+
+    private static double[] endPoint(ParallelWays pWays, int i, double d) {
+        int n = pWays.getNodeCount();
+        double[] normal = i == 0 ? normal(pWays, 0, 1) : normal(pWays, n - 2, n - 1);
+        return new double[] { pWays.getPointX(i) + d * normal[0], pWays.getPointY(i) + d * normal[1] };
+    }
+
+    private static double[] normal(ParallelWays pWays, int a, int b) {
+        double dx = pWays.getPointX(b) - pWays.getPointX(a);
+        double dy = pWays.getPointY(b) - pWays.getPointY(a);
+        double len = Math.sqrt(dx * dx + dy * dy);
+        return new double[] { -dy / len, dx / len };
+    }
+
+    private static boolean same(double a, double b) {
+        return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+    }
+
+    private static void fail(int k, String message) {
+        failures++;
+        System.out.println("Path " + k + ": " + message);
+    }
+
+    /**
+     * A random walk of nodeCount nodes split into wayCount ways. Closed paths
+     * return to the first node.
+     */
+    private static List<Way> makeRandomPath(Random random, int nodeCount, int wayCount, boolean closed) {
+        List<Node> nodes = new ArrayList<Node>(nodeCount);
+        double x = 0, y = 0, angle = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            if (closed && i == nodeCount - 1) {
+                nodes.add(nodes.get(0));
+                continue;
+            }
+            nodes.add(new Node(new EastNorth(x, y)));
+            angle += random.nextGaussian();
+            double step = 1 + random.nextDouble() * 20;
+            x += step * Math.cos(angle);
+            y += step * Math.sin(angle);
+        }
+
+        int segments = nodeCount - 1;
+        List<Way> result = new ArrayList<Way>(wayCount);
+        for (int w = 0; w < wayCount; w++) {
+            int from = segments * w / wayCount;
+            int to = segments * (w + 1) / wayCount;
+            Way way = new Way();
+            for (int i = from; i <= to; i++) {
+                way.addNode(nodes.get(i));
+            }
+            result.add(way);
+        }
+        return result;
+    }
+}
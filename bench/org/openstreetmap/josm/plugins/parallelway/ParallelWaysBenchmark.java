@@ -0,0 +1,145 @@
+/*
+ * Encoding: UTF-8
+ * Licence:  GPL v2 or later
+ * Author:   Ole Jørgen Brønner <olejorgen@yahoo.no>, 2011
+ */
+
+package org.openstreetmap.josm.plugins.parallelway;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+
+/**
+ * Benchmarks of the ParallelWays core: construction (copy and path
+ * building), offset calculation and commit.
+ *
+ * The source paths are synthetic wiggly lines or circles (see
+ * BenchmarkPaths), split into a number of connected ways. Combinations
+ * with more ways than segments are clamped to one segment per way.
+ *
+ * Run with 'ant bench'
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ParallelWaysBenchmark {
+    @Param({ "10", "1000", "100000", "1000000" })
+    public int nodes;
+
+    @Param({ "1", "100", "10000" })
+    public int ways;
+
+    @Param({ "false", "true" })
+    public boolean closed;
+
+    private List<Way> sourceWays;
+    private ParallelWays pWays;
+    private ParallelWays metricWays;
+    private ParallelWays sequentialWays;
+    private ParallelWays defaultWays;
+    private OffsetBuffer buffer;
+    private int offsetStep;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkPaths.initJosm();
+        sourceWays = BenchmarkPaths.makePath(nodes, ways, closed);
+        pWays = new ParallelWays(sourceWays, false, 0);
+        metricWays = new ParallelWays(sourceWays, false, 0);
+        metricWays.setMetricOffsets(true);
+        sequentialWays = new ParallelWays(sourceWays, false, 0);
+        sequentialWays.setParallelThreshold(Integer.MAX_VALUE);
+        defaultWays = new ParallelWays(sourceWays, false, 0);
+        defaultWays.setMetricOffsets(ParallelWayMode.isMetricOffsetsPreference());
+        ParallelWayMode.applyJoinPreferences(defaultWays, 1);
+        buffer = new OffsetBuffer(defaultWays.getMaxOutputCount(), 1);
+    }
+
+    @Benchmark
+    public ParallelWays construct() {
+        return new ParallelWays(sourceWays, false, 0);
+    }
+
+    /**
+     * The kernel alone, as used by the drag preview
+     */
+    @Benchmark
+    public void computeOffset(Blackhole bh) {
+        pWays.computeOffset(nextOffset(), buffer.x, buffer.y, 0, null);
+        bh.consume(buffer.x);
+        bh.consume(buffer.y);
+    }
+
+    /**
+     * The kernel in the calling thread only, for comparison with the chunked
+     * computation of the large paths
+     */
+    @Benchmark
+    public void computeOffsetSequential(Blackhole bh) {
+        sequentialWays.computeOffset(nextOffset(), buffer.x, buffer.y, 0, null);
+        bh.consume(buffer.x);
+        bh.consume(buffer.y);
+    }
+
+    /**
+     * The kernel with offsets in metres
+     */
+    @Benchmark
+    public void computeMetricOffset(Blackhole bh) {
+        metricWays.computeOffset(nextOffset(), buffer.x, buffer.y, 0, null);
+        bh.consume(buffer.x);
+        bh.consume(buffer.y);
+    }
+
+    /**
+     * The kernel as a drag runs it, with the metric offset and join
+     * preferences of the mode at their defaults
+     */
+    @Benchmark
+    public void computeOffsetDefaults(Blackhole bh) {
+        defaultWays.computeOffset(nextOffset(), buffer.x, buffer.y, 0, null);
+        bh.consume(buffer.x);
+        bh.consume(buffer.y);
+    }
+
+    private double nextOffset() {
+        offsetStep = (offsetStep + 1) % 100;
+        return 1 + offsetStep * 0.37;
+    }
+
+    /**
+     * Commits a freshly constructed ParallelWays to an empty layer.
+     */
+    @State(Scope.Thread)
+    public static class CommitState {
+        ParallelWays pWays;
+        OsmDataLayer layer;
+
+        @Setup(Level.Invocation)
+        public void setUp(ParallelWaysBenchmark bench) {
+            pWays = new ParallelWays(bench.sourceWays, false, 0);
+            layer = new OsmDataLayer(new DataSet(), "benchmark", null);
+        }
+    }
+
+    @Benchmark
+    public List<Way> commit(CommitState state) {
+        List<Way> createdWays = state.pWays.makeWays(new double[] { 5.0 });
+        new AddWaysCommand(state.layer, "benchmark", createdWays).executeCommand();
+        return createdWays;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Encoding: UTF-8
+ * Licence:  GPL v2 or later
+ * Author:   Ole Jørgen Brønner <olejorgen@yahoo.no>, 2011
+ */
+
+package org.openstreetmap.josm.plugins.parallelway;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.swing.Icon;
+
+import org.openstreetmap.josm.command.Command;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.tools.ImageProvider;
+
+/**
+ * Adds new ways and their nodes to a layer as one command.
+ *
+ * Replaces an AddCommand per primitive in a SequenceCommand, which for large
+ * paths meant one command object per node on the undo stack. The primitives
+ * are kept in two arrays, and the dataset is updated in one batch
+ * (beginUpdate/endUpdate) on execute and undo, so listeners are notified once.
+ */
+class AddWaysCommand extends Command {
+    private final String description;
+    private final Node[] nodes;
+    private final Way[] ways;
+
+    /**
+     * @param ways new ways. Their nodes must be new too, and are added along with them.
+     */
+    public AddWaysCommand(OsmDataLayer layer, String description, Collection<Way> ways) {
+        super(layer);
+        this.description = description;
+        this.ways = ways.toArray(new Way[ways.size()]);
+        HashSet<Node> seen = new HashSet<Node>();
+        List<Node> nodeList = new ArrayList<Node>();
+        for (Way w : this.ways) {
+            for (Node n : w.getNodes()) {
+                if (seen.add(n)) {
+                    nodeList.add(n);
+                }
+            }
+        }
+        nodes = nodeList.toArray(new Node[nodeList.size()]);
+    }
+
+    @Override
+    public boolean executeCommand() {
+        DataSet ds = getLayer().data;
+        ds.beginUpdate();
+        try {
+            // The nodes must be in the dataset before the ways referring to them
+            for (Node n : nodes) {
+                ds.addPrimitive(n);
+                n.setModified(true);
+            }
+            for (Way w : ways) {
+                ds.addPrimitive(w);
+                w.setModified(true);
+            }
+        } finally {
+            ds.endUpdate();
+        }
+        return true;
+    }
+
+    @Override
+    public void undoCommand() {
+        DataSet ds = getLayer().data;
+        ds.beginUpdate();
+        try {
+            for (int i = ways.length - 1; i >= 0; i--) {
+                ds.removePrimitive(ways[i]);
+            }
+            for (int i = nodes.length - 1; i >= 0; i--) {
+                ds.removePrimitive(nodes[i]);
+            }
+        } finally {
+            ds.endUpdate();
+        }
+    }
+
+    @Override
+    public void fillModifiedData(Collection<OsmPrimitive> modified, Collection<OsmPrimitive> deleted,
+            Collection<OsmPrimitive> added) {
+        added.addAll(Arrays.asList(nodes));
+        added.addAll(Arrays.asList(ways));
+    }
+
+    @Override
+    public Collection<? extends OsmPrimitive> getParticipatingPrimitives() {
+        List<OsmPrimitive> primitives = new ArrayList<OsmPrimitive>(nodes.length + ways.length);
+        primitives.addAll(Arrays.asList(nodes));
+        primitives.addAll(Arrays.asList(ways));
+        return primitives;
+    }
+
+    @Override
+    public String getDescriptionText() {
+        return description;
+    }
+
+    @Override
+    public Icon getDescriptionIcon() {
+        return ImageProvider.get("data", "way");
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Encoding: UTF-8
+ * Licence:  GPL v2 or later
+ * Author:   Ole Jørgen Brønner <olejorgen@yahoo.no>, 2011
+ */
+
+package org.openstreetmap.josm.plugins.parallelway;
+
+import java.util.Arrays;
+
+/**
+ * Latency histograms of the steps of the parallel way pipeline, used to find
+ * out whether the geometry, the dataset or the rendering is slow.
+ *
+ * Usage: <code>long t = DragMetrics.start(); ...; DragMetrics.record(Step.PAINT, t, nodes);</code>
+ *
+ * Recording is a no-op unless enabled, and may be done from any thread.
+ */
+public class DragMetrics {
+    public enum Step {
+        DRAG_EVENT("drag event"),
+        INIT("drag start"),
+        CONSTRUCT("path setup"),
+        METRE_SCALE("metre scale"),
+        OFFSET("offset"),
+        PUBLISH("publish"),
+        PAINT("paint"),
+        COMMIT("commit");
+
+        private final String name;
+
+        private Step(String name) {
+            this.name = name;
+        }
+    }
+
+    // Bucket b holds durations in [2^(b-1), 2^b) microseconds. The last bucket is open ended
+    private static final int BUCKETS = 32;
+
+    private static volatile boolean enabled;
+
+    private static final long[][] histograms = new long[Step.values().length][BUCKETS];
+    private static final long[] counts = new long[Step.values().length];
+    private static final long[] totalNanos = new long[Step.values().length];
+    private static final long[] maxNanos = new long[Step.values().length];
+    private static final long[] totalNodes = new long[Step.values().length];
+
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return a timestamp to pass to record, or 0 if disabled
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time since startNanos for the step
+     *
+     * @param nodes number of nodes processed
+     */
+    public static void record(Step step, long startNanos, int nodes) {
+        if (!enabled || startNanos == 0)
+            return;
+        long nanos = System.nanoTime() - startNanos;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos / 1000));
+        int s = step.ordinal();
+        synchronized (histograms) {
+            histograms[s][bucket]++;
+            counts[s]++;
+            totalNanos[s] += nanos;
+            totalNodes[s] += nodes;
+            if (nanos > maxNanos[s]) {
+                maxNanos[s] = nanos;
+            }
+        }
+    }
+
+    public static void reset() {
+        synchronized (histograms) {
+            for (int s = 0; s < counts.length; s++) {
+                Arrays.fill(histograms[s], 0);
+                counts[s] = 0;
+                totalNanos[s] = 0;
+                maxNanos[s] = 0;
+                totalNodes[s] = 0;
+            }
+        }
+    }
+
+    /**
+     * @return a summary table of all steps recorded since the last reset
+     */
+    public static String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-12s %8s %10s %10s %10s %10s %10s %10s%n", "step", "count", "mean ms", "p50 ms",
+                "p90 ms", "p99 ms", "max ms", "nodes"));
+        synchronized (histograms) {
+            for (Step step : Step.values()) {
+                int s = step.ordinal();
+                if (counts[s] == 0) {
+                    continue;
+                }
+                sb.append(String.format("%-12s %8d %10.3f %10s %10s %10s %10.3f %10d%n", step.name, counts[s],
+                        totalNanos[s] / 1e6 / counts[s], percentile(s, 0.5), percentile(s, 0.9),
+                        percentile(s, 0.99), maxNanos[s] / 1e6, totalNodes[s] / counts[s]));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return upper bound of the bucket containing the percentile, as "&lt;x" in milliseconds
+     */
+    private static String percentile(int s, double p) {
+        long target = (long) Math.ceil(counts[s] * p);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += histograms[s][b];
+            if (seen >= target) {
+                if (b == BUCKETS - 1)
+                    return "inf";
+                return String.format("<%.3f", (1L << b) / 1000.0);
+            }
+        }
+        return "-";
+    }
+}
@@ -6,20 +6,45 @@
 
 package org.openstreetmap.josm.plugins.parallelway;
 
-import org.openstreetmap.josm.data.coor.EastNorth;
-
 public class Helpers {
-    public static EastNorth closestPointToLine(EastNorth lineP1, EastNorth lineP2, EastNorth point) {
-        double ldx = lineP2.getX() - lineP1.getX();
-        double ldy = lineP2.getY() - lineP1.getY();
-
-        if (ldx == 0 && ldy == 0) //segment zero length
-            return lineP1;
-
-        double pdx = point.getX() - lineP1.getX();
-        double pdy = point.getY() - lineP1.getY();
-
-        double offset = (pdx * ldx + pdy * ldy) / (ldx * ldx + ldy * ldy);
-        return new EastNorth(lineP1.getX() + ldx * offset, lineP1.getY() + ldy * offset);
+    /**
+     * Clips the line (x1, y1)-(x2, y2) against the rectangle (Liang-Barsky).
+     *
+     * @param line {x1, y1, x2, y2}. Replaced by the clipped line.
+     * @return false if the line is completely outside the rectangle
+     */
+    public static boolean clipLine(double[] line, double minX, double minY, double maxX, double maxY) {
+        double x1 = line[0], y1 = line[1];
+        double dx = line[2] - x1;
+        double dy = line[3] - y1;
+        double[] p = { -dx, dx, -dy, dy };
+        double[] q = { x1 - minX, maxX - x1, y1 - minY, maxY - y1 };
+        double t0 = 0, t1 = 1;
+        for (int i = 0; i < 4; i++) {
+            if (p[i] == 0) {
+                if (q[i] < 0)
+                    return false;
+            } else {
+                double t = q[i] / p[i];
+                if (p[i] < 0) {
+                    if (t > t1)
+                        return false;
+                    if (t > t0) {
+                        t0 = t;
+                    }
+                } else {
+                    if (t < t0)
+                        return false;
+                    if (t < t1) {
+                        t1 = t;
+                    }
+                }
+            }
+        }
+        line[0] = x1 + t0 * dx;
+        line[1] = y1 + t0 * dy;
+        line[2] = x1 + t1 * dx;
+        line[3] = y1 + t1 * dy;
+        return true;
     }
 }
@@ -0,0 +1,315 @@
+/*
+ * Encoding: UTF-8
+ * Licence:  GPL v2 or later
+ * Author:   Ole Jørgen Brønner <olejorgen@yahoo.no>, 2011
+ */
+
+package org.openstreetmap.josm.plugins.parallelway;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+import static org.openstreetmap.josm.tools.I18n.trn;
+
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.Insets;
+import java.awt.event.ActionEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.swing.JCheckBox;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JTextField;
+
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.actions.JosmAction;
+import org.openstreetmap.josm.actions.search.SearchCompiler;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.gui.ExtendedDialog;
+import org.openstreetmap.josm.gui.PleaseWaitRunnable;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+
+/**
+ * Makes parallel copies of all ways matching a search expression, at a fixed offset.
+ *
+ * The matching ways are split into branchless chains, and each chain is an
+ * independent ParallelWays computation. These are spread over all available
+ * processors, and the result is added as a single undo step. The paths are
+ * copied from the dataset first, so it can be edited while they are computed.
+ */
+public class MakeParallelWaysAction extends JosmAction {
+    private static final long serialVersionUID = 1L;
+
+    public MakeParallelWaysAction() {
+        super(tr("Make parallel ways..."), "mapmode/parallel",
+                tr("Make parallel copies of all ways matching a search expression"), null, true);
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        if (!isEnabled() || getCurrentDataSet() == null)
+            return;
+
+        JTextField searchField = new JTextField(getStringPref("search", "highway=* sidewalk=both"), 30);
+        JTextField offsetField = new JTextField(getStringPref("offset", "5"), 8);
+        JCheckBox bothSides = new JCheckBox(tr("Both sides"), Main.pref.getBoolean(prefKey("both-sides"), true));
+        JCheckBox copyTags = new JCheckBox(tr("Copy tags"), Main.pref.getBoolean(prefKey("copy-tags"), false));
+        JTextField simplifyField = new JTextField(getStringPref("simplify-tolerance", "0"), 8);
+
+        JPanel panel = new JPanel(new GridBagLayout());
+        GridBagConstraints c = new GridBagConstraints();
+        c.anchor = GridBagConstraints.WEST;
+        c.insets = new Insets(2, 2, 2, 2);
+        c.gridy = 0;
+        panel.add(new JLabel(tr("Search expression:")), c);
+        panel.add(searchField, c);
+        c.gridy = 1;
+        // The ways of a path may point in different directions, so the side is given by its longest way
+        panel.add(new JLabel(ParallelWayMode.isMetricOffsetsPreference()
+                ? tr("Offset (m, left of each path, in the direction of its longest way):")
+                : tr("Offset (left of each path, in the direction of its longest way):")), c);
+        panel.add(offsetField, c);
+        c.gridy = 2;
+        c.gridx = 1;
+        panel.add(bothSides, c);
+        c.gridy = 3;
+        panel.add(copyTags, c);
+        c.gridy = 4;
+        c.gridx = GridBagConstraints.RELATIVE;
+        panel.add(new JLabel(tr("Simplify tolerance (m, 0 to disable):")), c);
+        panel.add(simplifyField, c);
+
+        ExtendedDialog dialog = new ExtendedDialog(Main.parent, tr("Make parallel ways"), new String[] { tr("OK"),
+                tr("Cancel") });
+        dialog.setContent(panel);
+        dialog.setButtonIcons(new String[] { "ok.png", "cancel.png" });
+        dialog.showDialog();
+        if (dialog.getValue() != 1)
+            return;
+
+        SearchCompiler.Match match;
+        double offset;
+        double simplifyTolerance;
+        try {
+            match = SearchCompiler.compile(searchField.getText(), false, false);
+            offset = Double.parseDouble(offsetField.getText().trim());
+        } catch (SearchCompiler.ParseError ex) {
+            JOptionPane.showMessageDialog(Main.parent, ex.getMessage(), tr("Invalid search expression"),
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(Main.parent, tr("Invalid offset: {0}", offsetField.getText()),
+                    tr("Make parallel way error"), JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        try {
+            simplifyTolerance = parseTolerance(simplifyField.getText());
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(Main.parent, tr("Invalid simplify tolerance: {0}", simplifyField.getText()),
+                    tr("Make parallel way error"), JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        Main.pref.put(prefKey("search"), searchField.getText());
+        Main.pref.put(prefKey("offset"), offsetField.getText().trim());
+        Main.pref.put(prefKey("both-sides"), bothSides.isSelected());
+        Main.pref.put(prefKey("copy-tags"), copyTags.isSelected());
+        Main.pref.put(prefKey("simplify-tolerance"), simplifyField.getText().trim());
+
+        double[] offsets = bothSides.isSelected() ? new double[] { offset, -offset } : new double[] { offset };
+        Main.worker.submit(new BatchTask(Main.main.getEditLayer(), match, offsets, copyTags.isSelected(),
+                simplifyTolerance, Main.map.mapView.getScale()));
+    }
+
+    private static double parseTolerance(String text) {
+        text = text.trim();
+        if (text.length() == 0)
+            return 0;
+        double tolerance = Double.parseDouble(text);
+        if (tolerance < 0)
+            throw new NumberFormatException(text);
+        return tolerance;
+    }
+
+    @Override
+    protected void updateEnabledState() {
+        setEnabled(getCurrentDataSet() != null);
+    }
+
+    private static class BatchTask extends PleaseWaitRunnable {
+        // How often waiting for a chain checks whether the task was canceled (ms)
+        private static final int CANCEL_POLL_INTERVAL = 100;
+
+        private final OsmDataLayer layer;
+        private final SearchCompiler.Match match;
+        private final double[] offsets;
+        private final boolean copyTags;
+        private final double simplifyTolerance;
+        // EastNorth units per pixel when the action was started, for the join preferences
+        private final double scale;
+
+        private volatile boolean canceled;
+        // Set by the worker, shut down by cancel() on the EDT
+        private volatile ExecutorService executor;
+        // Whether every chain was waited for. The ways are only added if so.
+        private volatile boolean completed;
+        private final List<Way> createdWays = new ArrayList<Way>();
+        private int failedChains;
+
+        public BatchTask(OsmDataLayer layer, SearchCompiler.Match match, double[] offsets, boolean copyTags,
+                double simplifyTolerance, double scale) {
+            super(tr("Making parallel ways"));
+            this.layer = layer;
+            this.match = match;
+            this.offsets = offsets;
+            this.copyTags = copyTags;
+            this.simplifyTolerance = simplifyTolerance;
+            this.scale = scale;
+        }
+
+        @Override
+        protected void realRun() {
+            //// Copy what the chains need from the dataset, holding the read lock only meanwhile
+            // The chains are then computed from the copies, while the EDT may edit the dataset.
+            List<ParallelWays> paths = new ArrayList<ParallelWays>();
+            DataSet ds = layer.data;
+            ds.getReadLock().lock();
+            try {
+                List<Way> matches = new ArrayList<Way>();
+                for (Way w : ds.getWays()) {
+                    if (w.isUsable() && match.match(w)) {
+                        matches.add(w);
+                    }
+                }
+                for (List<Way> chain : PathBuilder.splitIntoChains(matches)) {
+                    if (canceled)
+                        return;
+                    try {
+                        ParallelWays pWays = new ParallelWays(chain, copyTags, getLongestWayIndex(chain));
+                        pWays.snapshotTags();
+                        paths.add(pWays);
+                    } catch (IllegalArgumentException ex) {
+                        failedChains++;
+                    }
+                }
+            } finally {
+                ds.getReadLock().unlock();
+            }
+            getProgressMonitor().setTicksCount(paths.size());
+
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            try {
+                List<Future<List<Way>>> results = new ArrayList<Future<List<Way>>>(paths.size());
+                for (ParallelWays pWays : paths) {
+                    results.add(executor.submit(new ChainTask(pWays, offsets, simplifyTolerance, scale)));
+                }
+                // Canceling drains the queued chains without completing their futures, so a
+                // blocking get could wait forever. Poll, and recheck the flag in between.
+                int i = 0;
+                while (i < results.size() && !canceled) {
+                    try {
+                        createdWays.addAll(results.get(i).get(CANCEL_POLL_INTERVAL, TimeUnit.MILLISECONDS));
+                    } catch (TimeoutException ex) {
+                        continue;
+                    } catch (ExecutionException ex) {
+                        if (!(ex.getCause() instanceof IllegalArgumentException))
+                            throw new RuntimeException(ex.getCause());
+                        failedChains++;
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    getProgressMonitor().worked(1);
+                    i++;
+                }
+                completed = i == results.size();
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        @Override
+        protected void finish() {
+            if (canceled || !completed || createdWays.isEmpty())
+                return;
+            Main.main.undoRedo.add(new AddWaysCommand(layer, tr("Make parallel ways"), createdWays));
+            layer.data.setSelected(createdWays);
+            if (failedChains > 0) {
+                JOptionPane.showMessageDialog(Main.parent, trn("{0} path could not be made parallel",
+                        "{0} paths could not be made parallel", failedChains, failedChains),
+                        tr("Make parallel ways"), JOptionPane.WARNING_MESSAGE);
+            }
+        }
+
+        @Override
+        protected void cancel() {
+            canceled = true;
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * The index of the longest way of the chain, which gives the direction of its offset.
+     * Ties go to the way with the lowest id, so the side doesn't depend on the order of the chain.
+     */
+    private static int getLongestWayIndex(List<Way> chain) {
+        int longest = 0;
+        double longestLength = -1;
+        for (int i = 0; i < chain.size(); i++) {
+            Way w = chain.get(i);
+            double length = 0;
+            for (int j = 1; j < w.getNodesCount(); j++) {
+                length += w.getNode(j - 1).getEastNorth().distance(w.getNode(j).getEastNorth());
+            }
+            if (length > longestLength
+                    || length == longestLength && w.getUniqueId() < chain.get(longest).getUniqueId()) {
+                longest = i;
+                longestLength = length;
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * Makes one chain parallel. Independent of all other chains, and of the
+     * dataset: the path and its tags were copied when it was made.
+     */
+    private static class ChainTask implements Callable<List<Way>> {
+        private final ParallelWays pWays;
+        private final double[] offsets;
+        private final double simplifyTolerance;
+        private final double scale;
+
+        public ChainTask(ParallelWays pWays, double[] offsets, double simplifyTolerance, double scale) {
+            this.pWays = pWays;
+            this.offsets = offsets;
+            this.simplifyTolerance = simplifyTolerance;
+            this.scale = scale;
+        }
+
+        @Override
+        public List<Way> call() {
+            pWays.setSimplifyTolerance(simplifyTolerance);
+            pWays.setMetricOffsets(ParallelWayMode.isMetricOffsetsPreference());
+            ParallelWayMode.applyJoinPreferences(pWays, scale);
+            return pWays.makeWays(offsets);
+        }
+    }
+
+    private static String prefKey(String subKey) {
+        return "edit.make-parallel-way-action.batch." + subKey;
+    }
+
+    private static String getStringPref(String subKey, String def) {
+        return Main.pref.get(prefKey(subKey), def);
+    }
+}
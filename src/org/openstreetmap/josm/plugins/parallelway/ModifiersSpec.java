@@ -6,13 +6,29 @@
 
 package org.openstreetmap.josm.plugins.parallelway;
 
-// TODO: rewrite to use awt modifers flag instead.
-// Yeah, I had done that, but then I rm -rf'd my local repo. Make _frequent_ backups and use rm -rf carefully kids :(
+import java.awt.event.InputEvent;
+
+/**
+ * A combination of modifier keys, where each key is either required to be
+ * down, required to be up, or doesn't matter.
+ *
+ * Compiled to a mask of the keys that matter and their required values, so
+ * matching the modifier state of an event is a single comparison. The state
+ * is a small integer (see getState), so it can index lookup tables.
+ */
 public class ModifiersSpec {
     static public final int ON = 1, OFF = 0, UNKNOWN = 2;
-    public int alt = UNKNOWN;
-    public int shift = UNKNOWN;
-    public int ctrl = UNKNOWN;
+
+    //// Bits of a modifier state
+    public static final int ALT = 1;
+    public static final int SHIFT = 2;
+    public static final int CTRL = 4;
+    // The number of distinct modifier states
+    public static final int STATE_COUNT = 8;
+
+    // The keys that matter, and which of those must be down
+    private final int mask;
+    private final int value;
 
     /**
      *  'A' = Alt, 'S' = Shift, 'C' = Ctrl
@@ -21,38 +37,55 @@ public class ModifiersSpec {
      * @param str
      */
     public ModifiersSpec(String str) {
-        assert (str.length() == 3);
-        char a = str.charAt(0);
-        char s = str.charAt(1);
-        char c = str.charAt(2);
-        // @formatter:off
-        alt   = (a == '?' ? UNKNOWN : (a == 'A' ? ON : OFF));
-        shift = (s == '?' ? UNKNOWN : (s == 'S' ? ON : OFF));
-        ctrl  = (c == '?' ? UNKNOWN : (c == 'C' ? ON : OFF));
-        // @formatter:on
-    }
-
-    public ModifiersSpec(final int alt, final int shift, final int ctrl) {
-        this.alt = alt;
-        this.shift = shift;
-        this.ctrl = ctrl;
+        this(parse(str, 0, 'A'), parse(str, 1, 'S'), parse(str, 2, 'C'));
     }
 
-    public boolean matchWithKnown(final int knownAlt, final int knownShift, final int knownCtrl) {
-        return match(alt, knownAlt) && match(shift, knownShift) && match(ctrl, knownCtrl);
+    private static int parse(String str, int i, char on) {
+        assert (str.length() == 3);
+        char c = str.charAt(i);
+        return c == '?' ? UNKNOWN : (c == on ? ON : OFF);
     }
 
-    public boolean matchWithKnown(final boolean knownAlt, final boolean knownShift, final boolean knownCtrl) {
-        return match(alt, knownAlt) && match(shift, knownShift) && match(ctrl, knownCtrl);
+    public ModifiersSpec(final int alt, final int shift, final int ctrl) {
+        int m = 0, v = 0;
+        if (alt != UNKNOWN) {
+            m |= ALT;
+            v |= alt == ON ? ALT : 0;
+        }
+        if (shift != UNKNOWN) {
+            m |= SHIFT;
+            v |= shift == ON ? SHIFT : 0;
+        }
+        if (ctrl != UNKNOWN) {
+            m |= CTRL;
+            v |= ctrl == ON ? CTRL : 0;
+        }
+        mask = m;
+        value = v;
     }
 
-    private boolean match(final int a, final int knownValue) {
-        assert (knownValue == ON | knownValue == OFF);
-        return a == knownValue || a == UNKNOWN;
+    /**
+     * @param state a modifier state, see getState
+     */
+    public boolean matches(int state) {
+        return (state & mask) == value;
     }
 
-    private boolean match(final int a, final boolean knownValue) {
-        return a == (knownValue ? ON : OFF) || a == UNKNOWN;
+    /**
+     * @param awtModifiers as returned by InputEvent.getModifiers()
+     * @return the modifier state, a combination of ALT, SHIFT and CTRL
+     */
+    public static int getState(int awtModifiers) {
+        int state = 0;
+        if ((awtModifiers & (InputEvent.ALT_MASK | InputEvent.ALT_GRAPH_MASK)) != 0) {
+            state |= ALT;
+        }
+        if ((awtModifiers & InputEvent.SHIFT_MASK) != 0) {
+            state |= SHIFT;
+        }
+        if ((awtModifiers & InputEvent.CTRL_MASK) != 0) {
+            state |= CTRL;
+        }
+        return state;
     }
-    // does java have built in 3-state support?
-}
\ No newline at end of file
+}
@@ -0,0 +1,108 @@
+/*
+ * Encoding: UTF-8
+ * Licence:  GPL v2 or later
+ * Author:   Ole Jørgen Brønner <olejorgen@yahoo.no>, 2011
+ */
+
+package org.openstreetmap.josm.plugins.parallelway;
+
+import static org.openstreetmap.josm.tools.I18n.trn;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import javax.swing.Icon;
+
+import org.openstreetmap.josm.command.Command;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.tools.ImageProvider;
+
+/**
+ * Moves existing nodes to new positions as one command.
+ *
+ * Unlike MoveCommand each node gets its own position. The old positions are
+ * kept in primitive arrays rather than one state object per node, and the
+ * dataset is updated in one batch on execute and undo.
+ */
+class MoveNodesCommand extends Command {
+    private final Node[] nodes;
+    private final double[] newX;
+    private final double[] newY;
+    // Saved on execute
+    private final double[] oldX;
+    private final double[] oldY;
+    private final boolean[] oldModified;
+
+    /**
+     * @param x the new east coordinate of each node
+     * @param y the new north coordinate of each node
+     */
+    public MoveNodesCommand(List<Node> nodes, double[] x, double[] y) {
+        this.nodes = nodes.toArray(new Node[nodes.size()]);
+        newX = Arrays.copyOf(x, this.nodes.length);
+        newY = Arrays.copyOf(y, this.nodes.length);
+        oldX = new double[this.nodes.length];
+        oldY = new double[this.nodes.length];
+        oldModified = new boolean[this.nodes.length];
+    }
+
+    @Override
+    public boolean executeCommand() {
+        DataSet ds = nodes[0].getDataSet();
+        ds.beginUpdate();
+        try {
+            for (int i = 0; i < nodes.length; i++) {
+                Node n = nodes[i];
+                EastNorth en = n.getEastNorth();
+                oldX[i] = en.getX();
+                oldY[i] = en.getY();
+                oldModified[i] = n.isModified();
+                n.setEastNorth(new EastNorth(newX[i], newY[i]));
+                n.setModified(true);
+            }
+        } finally {
+            ds.endUpdate();
+        }
+        return true;
+    }
+
+    @Override
+    public void undoCommand() {
+        DataSet ds = nodes[0].getDataSet();
+        ds.beginUpdate();
+        try {
+            // Backwards, since a node may be listed more than once. Its first saved state is the original.
+            for (int i = nodes.length - 1; i >= 0; i--) {
+                nodes[i].setEastNorth(new EastNorth(oldX[i], oldY[i]));
+                nodes[i].setModified(oldModified[i]);
+            }
+        } finally {
+            ds.endUpdate();
+        }
+    }
+
+    @Override
+    public void fillModifiedData(Collection<OsmPrimitive> modified, Collection<OsmPrimitive> deleted,
+            Collection<OsmPrimitive> added) {
+        modified.addAll(Arrays.asList(nodes));
+    }
+
+    @Override
+    public Collection<? extends OsmPrimitive> getParticipatingPrimitives() {
+        return Arrays.asList(nodes);
+    }
+
+    @Override
+    public String getDescriptionText() {
+        return trn("Adjust offset of {0} node", "Adjust offset of {0} nodes", nodes.length, nodes.length);
+    }
+
+    @Override
+    public Icon getDescriptionIcon() {
+        return ImageProvider.get("data", "node");
+    }
+}
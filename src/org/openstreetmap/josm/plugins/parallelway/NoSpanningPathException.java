@@ -0,0 +1,31 @@
+/*
+ * Encoding: UTF-8
+ * Licence:  GPL v2 or later
+ * Author:   Ole Jørgen Brønner <olejorgen@yahoo.no>, 2011
+ */
+
+package org.openstreetmap.josm.plugins.parallelway;
+
+import org.openstreetmap.josm.data.osm.Node;
+
+/**
+ * Thrown when a set of ways can't be ordered into a single branchless path.
+ */
+public class NoSpanningPathException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    private final Node node;
+
+    public NoSpanningPathException(String message, Node node) {
+        super(message);
+        this.node = node;
+    }
+
+    /**
+     * @return the node where the path breaks, i.e. where it branches or ends
+     *         without connecting to the rest of the ways. Might be null.
+     */
+    public Node getNode() {
+        return node;
+    }
+}
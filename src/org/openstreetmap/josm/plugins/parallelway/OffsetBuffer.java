@@ -0,0 +1,51 @@
+/*
+ * Encoding: UTF-8
+ * Licence:  GPL v2 or later
+ * Author:   Ole Jørgen Brønner <olejorgen@yahoo.no>, 2011
+ */
+
+package org.openstreetmap.josm.plugins.parallelway;
+
+/**
+ * Node positions of one or more copies of a ParallelWays for a given offset.
+ *
+ * The copies are stored after each other; copy k occupies the index range
+ * [getStart(k), getStart(k) + count[k]). With join styles other than miter
+ * the copies may have more positions than the source path has nodes.
+ */
+class OffsetBuffer {
+    final double[] x;
+    final double[] y;
+    // The source vertex of each position. Only filled when trimming self intersections.
+    final int[] source;
+    final int[] count;
+    final int copyCount;
+    private final int capacity;
+
+    /**
+     * @param capacity the most positions of a copy, see ParallelWays.getMaxOutputCount
+     */
+    OffsetBuffer(int capacity, int copyCount) {
+        this.capacity = capacity;
+        this.copyCount = copyCount;
+        x = new double[capacity * copyCount];
+        y = new double[capacity * copyCount];
+        source = new int[capacity * copyCount];
+        count = new int[copyCount];
+    }
+
+    int getStart(int copy) {
+        return copy * capacity;
+    }
+
+    /**
+     * @return the number of positions of all the copies
+     */
+    int getPositionCount() {
+        int total = 0;
+        for (int k = 0; k < copyCount; k++) {
+            total += count[k];
+        }
+        return total;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Encoding: UTF-8
+ * Licence:  GPL v2 or later
+ * Author:   Ole Jørgen Brønner <olejorgen@yahoo.no>, 2011
+ */
+
+package org.openstreetmap.josm.plugins.parallelway;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Calculates offsets of a ParallelWays in a background thread.
+ *
+ * Each result holds one copy of the path per offset factor, offset by factor * d + shift.
+ *
+ * Only the latest requested offset is of interest, so requests arriving while
+ * a calculation is running replace each other. The result of the latest
+ * calculation is picked up with takeResult, typically by a timer in the EDT.
+ *
+ * At most three buffers are ever in use: one being written by the worker, one
+ * waiting to be picked up and one being used by the consumer.
+ */
+class OffsetWorker implements Runnable {
+    private final ParallelWays pWays;
+    private final double[] offsetFactors;
+    private final double[] offsetShifts;
+    private final SelfIntersectionTrimmer trimmer;
+    private final Thread thread;
+
+    private final Object lock = new Object();
+    private boolean hasRequest;
+    private double requestedOffset;
+    private boolean stopped;
+
+    private final AtomicReference<OffsetBuffer> ready = new AtomicReference<OffsetBuffer>();
+    private final AtomicReference<OffsetBuffer> spare = new AtomicReference<OffsetBuffer>();
+
+    /**
+     * @param offsetShifts added to the offset of the copy of the same index
+     */
+    public OffsetWorker(ParallelWays pWays, double[] offsetFactors, double[] offsetShifts) {
+        this.pWays = pWays;
+        this.offsetFactors = offsetFactors;
+        this.offsetShifts = offsetShifts;
+        trimmer = pWays.isTrimSelfIntersections() ? new SelfIntersectionTrimmer() : null;
+        thread = new Thread(this, "parallel-way-offset");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Schedule a calculation of offset d, replacing any pending request
+     */
+    public void requestOffset(double d) {
+        synchronized (lock) {
+            requestedOffset = d;
+            hasRequest = true;
+            lock.notify();
+        }
+    }
+
+    /**
+     * @return the newest result not yet taken, or null if there is none.
+     *         Hand the buffer back with recycle when done with it.
+     */
+    public OffsetBuffer takeResult() {
+        return ready.getAndSet(null);
+    }
+
+    public void recycle(OffsetBuffer buffer) {
+        spare.set(buffer);
+    }
+
+    /**
+     * Stops the worker and waits for a running calculation to finish, so the
+     * settings of the ParallelWays can be changed when this returns (e.g. when
+     * it's taken from the cache for the next drag). Pending requests are dropped.
+     */
+    public void stop() {
+        synchronized (lock) {
+            stopped = true;
+            lock.notify();
+        }
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        OffsetBuffer current = null;
+        while (true) {
+            double d;
+            synchronized (lock) {
+                while (!hasRequest && !stopped) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (stopped)
+                    return;
+                d = requestedOffset;
+                hasRequest = false;
+            }
+
+            if (current == null) {
+                current = spare.getAndSet(null);
+                if (current == null) {
+                    current = new OffsetBuffer(pWays.getMaxOutputCount(), offsetFactors.length);
+                }
+            }
+            long startTime = DragMetrics.start();
+            int total = 0;
+            for (int k = 0; k < offsetFactors.length; k++) {
+                int start = current.getStart(k);
+                // The source vertices are only needed for trimming
+                int count = pWays.computeOffset(d * offsetFactors[k] + offsetShifts[k], current.x, current.y, start,
+                        trimmer != null ? current.source : null);
+                if (trimmer != null) {
+                    pWays.trimSelfIntersections(trimmer, current.x, current.y, start, count, current.source);
+                }
+                current.count[k] = count;
+                total += count;
+            }
+            DragMetrics.record(DragMetrics.Step.OFFSET, startTime, total);
+            // If the previous result was never picked up we reuse it right away
+            current = ready.getAndSet(current);
+        }
+    }
+}
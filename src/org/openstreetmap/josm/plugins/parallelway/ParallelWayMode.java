@@ -19,13 +19,21 @@ import java.awt.Stroke;
 import java.awt.Toolkit;
 import java.awt.event.AWTEventListener;
 import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
+import java.awt.geom.GeneralPath;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.logging.Logger;
 
 import javax.swing.JOptionPane;
+import javax.swing.Timer;
 
 import org.openstreetmap.josm.Main;
 import org.openstreetmap.josm.actions.mapmode.MapMode;
@@ -35,22 +43,26 @@ import org.openstreetmap.josm.data.osm.Node;
 import org.openstreetmap.josm.data.osm.OsmPrimitive;
 import org.openstreetmap.josm.data.osm.Way;
 import org.openstreetmap.josm.data.osm.WaySegment;
+import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataSetListenerAdapter;
+import org.openstreetmap.josm.data.osm.event.DatasetEventManager;
+import org.openstreetmap.josm.data.osm.event.DatasetEventManager.FireMode;
 import org.openstreetmap.josm.gui.MapFrame;
 import org.openstreetmap.josm.gui.MapView;
 import org.openstreetmap.josm.gui.layer.Layer;
 import org.openstreetmap.josm.gui.layer.MapViewPaintable;
 import org.openstreetmap.josm.gui.layer.OsmDataLayer;
-import org.openstreetmap.josm.tools.Geometry;
 import org.openstreetmap.josm.tools.ImageProvider;
+import org.openstreetmap.josm.tools.Predicate;
 import org.openstreetmap.josm.tools.Shortcut;
 
 //// TODO: (list below)
 /* == Functionality ==
  *
- * 1. Use selected nodes as split points for the selected ways.
+ * 1. Use selected nodes as split points for the selected ways. (Done)
  *
- * The ways containing the selected nodes will be split and only the "inner"
- * parts will be copied
+ * Only the part of the path between the selected nodes on either side of the
+ * reference segment is copied. The ways themselves aren't split.
  *
  * 2. Enter exact offset
  *
@@ -62,7 +74,11 @@ import org.openstreetmap.josm.tools.Shortcut;
  *
  * 5. Cursors (Half-done)
  *
- * 6. (long term) Parallelize and adjust offsets of existing ways
+ * 6. (long term) Parallelize existing ways
+ *
+ * Adjusting the offset of existing ways is done: Shift-drag next to the
+ * reference way moves the nodes of the selected ways. The reference is the
+ * branchless chain of ways through the dragged way.
  *
  * == Code quality ==
  *
@@ -72,10 +88,10 @@ import org.openstreetmap.josm.tools.Shortcut;
  *
  * b) Extract generic MapMode services into a super class and/or utility class
  *
- * c) Maybe better to simply draw our own source way highlighting?
+ * c) Maybe better to simply draw our own source way highlighting? (Done)
  *
- * Current code doesn't not take into account that ways might been highlighted
- * by other than us. Don't think that situation should ever happen though.
+ * The source ways are painted by us, so they're no longer highlighted with
+ * Way.setHighlighted, which repainted the whole map for every way.
  */
 
 /**
@@ -89,6 +105,21 @@ public class ParallelWayMode extends MapMode implements AWTEventListener, MapVie
 
     private static final long serialVersionUID = 1L;
 
+    private static final Logger LOG = Logger.getLogger(ParallelWayMode.class.getName());
+
+    // Minimum time between publishing offset results to the map view. (ms)
+    private static final int FRAME_INTERVAL = 16;
+
+    // Lines are clipped to the view extended by this margin (pixels)
+    private static final int CLIP_MARGIN = 10;
+
+    private static final Stroke REF_LINE_STROKE = new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL,
+            10.0f, new float[] { 2f, 2f }, 0f);
+    private static final Stroke HELPER_LINE_STROKE = new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL);
+    private static final Stroke PREVIEW_STROKE = new BasicStroke(2, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+    private static final Stroke SOURCE_WAY_STROKE = new BasicStroke(8, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+    private static final Color SOURCE_WAY_COLOR = new Color(255, 255, 255, 128);
+
     private enum Mode {
         dragging, normal
     }
@@ -98,25 +129,58 @@ public class ParallelWayMode extends MapMode implements AWTEventListener, MapVie
     private Mode mode;
     private boolean copyTags;
     private boolean copyTagsDefault;
+    // Move the nodes of the selected ways instead of making new ways
+    private boolean adjust;
 
     private boolean snap;
     private boolean snapDefault;
 
     private double snapThreshold;
 
+    // Snapping to existing ways
+    private boolean snapToWays;
+    private int snapToWaysDistance;
+    // In the units of the offset (metres if metric). How far from the source path to look for ways to snap to.
+    private double snapSearchDistance;
+
+    private boolean trimSelfIntersections;
+    // Metres. 0 disables simplification of the created ways.
+    private double simplifyTolerance;
+    // Whether the offset (and its snapping) is in metres rather than EastNorth units
+    private boolean metricOffsets;
+    // Pixels. How much detail of the path may be left out of the preview while dragging.
+    private double previewTolerance;
+    // Pixels. How far round joins may deviate from a true arc.
+    private double roundJoinTolerance;
+
+    // A copy is made at each factor times the dragged distance, plus the shift of the same index.
+    // The shifts are in the units of the offset (metres if metric), for fixed lane layouts.
+    private double[] offsetFactors;
+    private double[] offsetShifts;
+
     private ModifiersSpec snapModifierCombo;
     private ModifiersSpec copyTagsModifierCombo;
     private ModifiersSpec addToSelectionModifierCombo;
     private ModifiersSpec toggleSelectedModifierCombo;
     private ModifiersSpec setSelectedModifierCombo;
+    private ModifiersSpec adjustModifierCombo;
+    // Snapping while adjusting. The adjust modifiers (Shift) are usually still held down.
+    private ModifiersSpec adjustSnapModifierCombo;
 
     private int initialMoveDelay;
 
     private final MapView mv;
 
-    private boolean ctrl;
-    private boolean alt;
-    private boolean shift;
+    // The modifier keys down, see ModifiersSpec.getState
+    private int modifiers;
+
+    // The cursor for each mode and modifier state, null to leave the cursor as it is, and the help text of
+    // each mode. Built with the preferences, so handling input events only needs to look them up.
+    private final Cursor[][] cursors = new Cursor[Mode.values().length][ModifiersSpec.STATE_COUNT];
+    private final String[] helpTexts = new String[Mode.values().length];
+    // What we last showed, to skip updates which wouldn't change anything
+    private Cursor shownCursor;
+    private String shownHelpText;
 
     // Mouse tracking state
     private Point mousePressedPos;
@@ -125,11 +189,61 @@ public class ParallelWayMode extends MapMode implements AWTEventListener, MapVie
     private boolean mouseHasBeenDragged;
 
     private WaySegment referenceSegment;
+    // Index of the source path segment the offset is currently measured from
+    private int refSegmentIndex = -1;
+    private final double[] closestPoint = new double[2];
     private ParallelWays pWays;
+    // When adjusting: the node of the selected ways at each vertex of pWays
+    private List<Node> adjustedNodes;
+    // Only while the mode is active, since it depends on dataset events
+    private ParallelWaysCache pWaysCache;
+    private WaySnapper waySnapper;
+    private List<Way> createdWays;
     LinkedHashSet<Way> sourceWays;
     private EastNorth helperLineStart;
     private EastNorth helperLineEnd;
 
+    // The offsets are calculated in the background and picked up by the timer.
+    // Nothing is added to the dataset before the mouse is released, until then
+    // the parallel ways are only painted by us.
+    private OffsetWorker offsetWorker;
+    private final Timer publishTimer;
+    private double offset;
+    private OffsetBuffer preview;
+    // The map scale the detail of the preview was chosen for, and the offset factors and shifts of the drag
+    private double previewScale;
+    private double[] dragFactors;
+    private double[] dragShifts;
+
+    //// Screen geometry cached between repaints. Invalidated on zoom/pan or when the lines change.
+    private final ViewTransform viewTransform = new ViewTransform();
+    private final double[] clipBuffer = new double[4];
+    private final int[] refLineScreen = new int[4];
+    private boolean refLineVisible;
+    private boolean refLineDirty = true;
+    private final int[] helperLineScreen = new int[4];
+    private boolean helperLineVisible;
+    private boolean helperLineDirty = true;
+    private final GeneralPath previewPath = new GeneralPath();
+    private boolean previewDirty = true;
+    // The source ways in screen space. Panning only moves them, so the path is kept until the source ways or
+    // the data change, the view is zoomed, or panned further than the path was clipped to (a view size in each
+    // direction). Drawn translated by the pan since it was projected.
+    private final GeneralPath sourceWaysPath = new GeneralPath();
+    private boolean sourceWaysDirty = true;
+    private Object sourceWaysProjection;
+    private double sourceWaysScale;
+    // Screen position of the EastNorth origin when the path was projected
+    private double sourceWaysOriginX;
+    private double sourceWaysOriginY;
+    private final DataSetListenerAdapter sourceWaysListener = new DataSetListenerAdapter(
+            new DataSetListenerAdapter.Listener() {
+                @Override
+                public void processDatasetEvent(AbstractDatasetChangedEvent event) {
+                    sourceWaysDirty = true;
+                }
+            });
+
     public ParallelWayMode(MapFrame mapFrame) {
         super(tr("Parallel"), "parallel", tr("Make parallel copies of ways"), Shortcut
                 .registerShortcut("mapmode:parallel", tr("Mode: {0}", tr("Parallel")), KeyEvent.VK_P,
@@ -138,17 +252,28 @@ public class ParallelWayMode extends MapMode implements AWTEventListener, MapVie
         putValue("help", ht("/Action/Parallel"));
         mv = mapFrame.mapView;
         updateModeLocalPreferences();
+        publishTimer = new Timer(FRAME_INTERVAL, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                publishOffset();
+            }
+        });
     }
 
     @Override
     public void enterMode() {
         // super.enterMode() updates the status line and cursor so we need our state to be set correctly
+        shownCursor = null;
+        shownHelpText = null;
         setMode(Mode.normal);
         pWays = null;
         updateAllPreferences(); // All default values should've been set now
 
         super.enterMode();
 
+        pWaysCache = new ParallelWaysCache(Main.pref.getInteger(prefKey("cache-size"), 8));
+        DatasetEventManager.getInstance().addDatasetListener(pWaysCache, FireMode.IMMEDIATELY);
+        DatasetEventManager.getInstance().addDatasetListener(sourceWaysListener, FireMode.IN_EDT_CONSOLIDATED);
         mv.addMouseListener(this);
         mv.addMouseMotionListener(this);
         mv.addTemporaryLayer(this);
@@ -159,40 +284,81 @@ public class ParallelWayMode extends MapMode implements AWTEventListener, MapVie
         } catch (SecurityException ex) {
         }
         sourceWays = new LinkedHashSet<Way>(getCurrentDataSet().getSelectedWays());
-        for (Way w : sourceWays) {
-            w.setHighlighted(true);
-        }
+        sourceWaysDirty = true;
+        mv.repaint();
     }
 
     @Override
     public void exitMode() {
         super.exitMode();
+        shownCursor = null;
         mv.removeMouseListener(this);
         mv.removeMouseMotionListener(this);
         mv.removeTemporaryLayer(this);
+        // Clear the source way highlighting
+        mv.repaint();
         Main.map.statusLine.setDist(-1);
         Main.map.statusLine.repaint();
         try {
             Toolkit.getDefaultToolkit().removeAWTEventListener(this);
         } catch (SecurityException ex) {
         }
-        removeWayHighlighting(sourceWays);
+        stopOffsetWorker();
+        DatasetEventManager.getInstance().removeDatasetListener(pWaysCache);
+        DatasetEventManager.getInstance().removeDatasetListener(sourceWaysListener);
+        pWaysCache = null;
+        if (DragMetrics.isEnabled()) {
+            LOG.info("Latencies since entering the mode\n" + DragMetrics.summary());
+            DragMetrics.reset();
+        }
         pWays = null;
+        createdWays = null;
         sourceWays = null;
         referenceSegment = null;
     }
 
     @Override
     public String getModeHelpText() {
+        return mode != null ? helpTexts[mode.ordinal()] : "";
+    }
+
+    @Override
+    protected void updateStatusLine() {
+        // The help texts are cached, so an unchanged text is the same string
+        String text = getModeHelpText();
+        if (text != shownHelpText) {
+            shownHelpText = text;
+            super.updateStatusLine();
+        }
+    }
+
+    /**
+     * Looks up the cursors and help texts of all modes and modifier states,
+     * which only change with the preferences.
+     */
+    private void updateCursorsAndHelpTexts() {
+        Cursor select = ImageProvider.getCursor("normal", "selection");
+        Cursor addToSelection = ImageProvider.getCursor("normal", "selection_add_element");
+        Cursor toggleSelected = ImageProvider.getCursor("normal", "selection_toggle_element");
+        Cursor move = Cursor.getPredefinedCursor(Cursor.MOVE_CURSOR);
+        for (int state = 0; state < ModifiersSpec.STATE_COUNT; state++) {
+            Cursor normal = null; // TODO: set to a cursor indicating an error
+            if (setSelectedModifierCombo.matches(state)) {
+                normal = select;
+            } else if (addToSelectionModifierCombo.matches(state)) {
+                normal = addToSelection;
+            } else if (toggleSelectedModifierCombo.matches(state)) {
+                normal = toggleSelected;
+            }
+            cursors[Mode.normal.ordinal()][state] = normal;
+            // TODO: snapping cursor?
+            cursors[Mode.dragging.ordinal()][state] = move;
+        }
+
         // TODO: add more detailed feedback based on modifier state.
         // TODO: dynamic messages based on preferences. (Could be problematic translation wise)
-        switch (mode) {
-        case normal:
-            return tr("Select ways as in Select mode. Drag selected ways or a single way to create a parallel copy (Alt toggles tag preservation)");
-        case dragging:
-            return tr("Hold Ctrl to toggle snapping");
-        }
-        return ""; // impossible ..
+        helpTexts[Mode.normal.ordinal()] = tr("Select ways as in Select mode. Drag selected ways or a single way to create a parallel copy (Alt toggles tag preservation, Shift-drag a reference way to adjust the offset of the selected ways)");
+        helpTexts[Mode.dragging.ordinal()] = tr("Hold Ctrl to toggle snapping");
     }
 
     // Separated due to "race condition" between default values
@@ -208,13 +374,99 @@ public class ParallelWayMode extends MapMode implements AWTEventListener, MapVie
         snapDefault      = Main.pref.getBoolean(prefKey("snap-default"),      true);
         copyTagsDefault  = Main.pref.getBoolean(prefKey("copy-tags-default"), true);
         initialMoveDelay = Main.pref.getInteger(prefKey("initial-move-delay"), 200);
+        trimSelfIntersections = Main.pref.getBoolean(prefKey("trim-self-intersections"), false);
+        simplifyTolerance  = Main.pref.getDouble (prefKey("simplify-tolerance"), 0);
+        metricOffsets      = isMetricOffsetsPreference();
+        roundJoinTolerance = getRoundJoinTolerance();
+        previewTolerance   = Main.pref.getDouble (prefKey("preview-tolerance"), 0.5);
+        snapToWays         = Main.pref.getBoolean(prefKey("snap-to-ways"), true);
+        snapToWaysDistance = Main.pref.getInteger(prefKey("snap-to-ways-distance"), 10);
+        snapSearchDistance = Main.pref.getDouble (prefKey("snap-search-distance"), 50);
+        DragMetrics.setEnabled(Main.pref.getBoolean(prefKey("metrics"), false));
+        offsetFactors    = parseOffsetFactors(getStringPref("copy-offsets", ""),
+                                              Main.pref.getInteger(prefKey("copies"), 1));
+        offsetShifts     = parseOffsetList(getStringPref("lane-offsets", ""), "lane-offsets");
+        if (offsetShifts != null) {
+            // A fixed layout around the dragged offset
+            offsetFactors = new double[offsetShifts.length];
+            Arrays.fill(offsetFactors, 1);
+        } else {
+            offsetShifts = new double[offsetFactors.length];
+        }
 
         snapModifierCombo           = new ModifiersSpec(getStringPref("snap-modifier-combo",             "?sC"));
         copyTagsModifierCombo       = new ModifiersSpec(getStringPref("copy-tags-modifier-combo",        "As?"));
         addToSelectionModifierCombo = new ModifiersSpec(getStringPref("add-to-selection-modifier-combo", "aSc"));
         toggleSelectedModifierCombo = new ModifiersSpec(getStringPref("toggle-selection-modifier-combo", "asC"));
         setSelectedModifierCombo    = new ModifiersSpec(getStringPref("set-selection-modifier-combo",    "asc"));
+        adjustModifierCombo         = new ModifiersSpec(getStringPref("adjust-modifier-combo",           "aS?"));
+        adjustSnapModifierCombo     = new ModifiersSpec(getStringPref("adjust-snap-modifier-combo",      "?SC"));
         // @formatter:on
+        updateCursorsAndHelpTexts();
+    }
+
+    /**
+     * @param factors list of offset factors separated by ';', e.g. "1;2;3" or "-1;1". Used if not empty.
+     * @param copies otherwise make this many copies at 1, 2, .., copies times the dragged distance
+     */
+    private static double[] parseOffsetFactors(String factors, int copies) {
+        double[] parsed = parseOffsetList(factors, "copy-offsets");
+        if (parsed != null)
+            return parsed;
+        double[] result = new double[Math.max(copies, 1)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = i + 1;
+        }
+        return result;
+    }
+
+    /**
+     * @param list numbers separated by ';', e.g. "-3.5;0;3.5"
+     * @return the numbers, or null if the list is empty or invalid
+     */
+    private static double[] parseOffsetList(String list, String prefName) {
+        if (list == null || list.trim().length() == 0)
+            return null;
+        String[] parts = list.split(";");
+        double[] result = new double[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                result[i] = Double.parseDouble(parts[i].trim());
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            LOG.warning("Invalid " + prefName + " preference: " + list);
+            return null;
+        }
+    }
+
+    /**
+     * Sets the join style of pWays from the preferences. Also used by the batch action.
+     *
+     * @param scale EastNorth units per pixel. The round join tolerance is given in pixels,
+     *            so round joins get fewer nodes when zoomed out.
+     */
+    static void applyJoinPreferences(ParallelWays pWays, double scale) {
+        String style = Main.pref.get(prefKey("join-style"), "miter");
+        try {
+            pWays.setJoinStyle(ParallelWays.JoinStyle.valueOf(style.trim().toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            LOG.warning("Invalid join-style preference: " + style);
+        }
+        pWays.setMiterLimit(Main.pref.getDouble(prefKey("miter-limit"), 4));
+        pWays.setMaxJoinNodes(Main.pref.getInteger(prefKey("max-join-nodes"), 16));
+        pWays.setArcTolerance(getRoundJoinTolerance() * scale);
+    }
+
+    /**
+     * Whether offsets are in metres rather than EastNorth units. Shared with the batch action.
+     */
+    static boolean isMetricOffsetsPreference() {
+        return Main.pref.getBoolean(prefKey("metric-offsets"), true);
+    }
+
+    private static double getRoundJoinTolerance() {
+        return Main.pref.getDouble(prefKey("round-join-tolerance"), 0.5);
     }
 
     @Override
@@ -224,10 +476,12 @@ public class ParallelWayMode extends MapMode implements AWTEventListener, MapVie
 
     @Override
     public void eventDispatched(AWTEvent e) {
+        // Should only get InputEvents due to the mask in enterMode
+        if (ModifiersSpec.getState(((InputEvent) e).getModifiers()) == modifiers)
+            return; // Most key events don't change the modifiers
         if (Main.map == null || mv == null || !mv.isActiveLayerDrawable())
             return;
 
-        // Should only get InputEvents due to the mask in enterMode
         if (updateModifiersState((InputEvent) e)) {
             updateStatusLine();
             updateCursor();
@@ -235,37 +489,15 @@ public class ParallelWayMode extends MapMode implements AWTEventListener, MapVie
     }
 
     private boolean updateModifiersState(InputEvent e) {
-        boolean oldAlt = alt, oldShift = shift, oldCtrl = ctrl;
-        alt = (e.getModifiers() & (ActionEvent.ALT_MASK | InputEvent.ALT_GRAPH_MASK)) != 0;
-        ctrl = (e.getModifiers() & ActionEvent.CTRL_MASK) != 0;
-        shift = (e.getModifiers() & ActionEvent.SHIFT_MASK) != 0;
-        boolean changed = (oldAlt != alt || oldShift != shift || oldCtrl != ctrl);
-        return changed;
+        int old = modifiers;
+        modifiers = ModifiersSpec.getState(e.getModifiers());
+        return modifiers != old;
     }
 
     private void updateCursor() {
-        Cursor newCursor = null;
-        switch (mode) {
-        case normal:
-            if (matchesCurrentModifiers(setSelectedModifierCombo)) {
-                newCursor = ImageProvider.getCursor("normal", "selection");
-            } else if (matchesCurrentModifiers(addToSelectionModifierCombo)) {
-                newCursor = ImageProvider.getCursor("normal", "selection_add_element");
-            } else if (matchesCurrentModifiers(toggleSelectedModifierCombo)) {
-                newCursor = ImageProvider.getCursor("normal", "selection_toggle_element");
-            } else {
-                // TODO: set to a cursor indicating an error
-            }
-            break;
-        case dragging:
-            if (snap) {
-                // TODO: snapping cursor?
-                newCursor = Cursor.getPredefinedCursor(Cursor.MOVE_CURSOR);
-            } else {
-                newCursor = Cursor.getPredefinedCursor(Cursor.MOVE_CURSOR);
-            }
-        }
-        if (newCursor != null) {
+        Cursor newCursor = cursors[mode.ordinal()][modifiers];
+        if (newCursor != null && newCursor != shownCursor) {
+            shownCursor = newCursor;
             mv.setNewCursor(newCursor, this);
         }
     }
@@ -306,10 +538,12 @@ public class ParallelWayMode extends MapMode implements AWTEventListener, MapVie
         updateFlagsChangeableAlways();
 
         // Since the created way is left selected, we need to unselect again here
-        if (pWays != null && pWays.ways != null) {
-            getCurrentDataSet().clearSelection(pWays.ways);
-            pWays = null;
+        if (createdWays != null) {
+            getCurrentDataSet().clearSelection(createdWays);
+            createdWays = null;
         }
+        pWays = null;
+        adjustedNodes = null;
 
         mouseIsDown = true;
         mousePressedPos = e.getPoint();
@@ -350,7 +584,13 @@ public class ParallelWayMode extends MapMode implements AWTEventListener, MapVie
                 addSourceWay(nearestWay);
             } // else -> invalid modifier combination
         } else if (mode == Mode.dragging) {
-            clearSourceWays();
+            stopOffsetWorker();
+            if (adjustedNodes != null) {
+                commitAdjustment();
+            } else {
+                clearSourceWays();
+                commitParallelWays();
+            }
         }
 
         setMode(Mode.normal);
@@ -358,14 +598,6 @@ public class ParallelWayMode extends MapMode implements AWTEventListener, MapVie
         mv.repaint();
     }
 
-    private void removeWayHighlighting(Collection<Way> ways) {
-        if (ways == null)
-            return;
-        for (Way w : ways) {
-            w.setHighlighted(false);
-        }
-    }
-
     @Override
     public void mouseDragged(MouseEvent e) {
         // WTF.. the event passed here doesn't have button info?
@@ -373,6 +605,7 @@ public class ParallelWayMode extends MapMode implements AWTEventListener, MapVie
         // _BUTTON1_ is down.
         if (!mouseIsDown)
             return;
+        long startTime = DragMetrics.start();
 
         boolean modifiersChanged = updateModifiersState(e);
         updateFlagsChangeableAlways();
@@ -397,99 +630,356 @@ public class ParallelWayMode extends MapMode implements AWTEventListener, MapVie
             // event can come quite late
             if (!isModifiersValidForDragMode())
                 return;
-            if (!initParallelWays(mousePressedPos, copyTags)) {
+            if (adjust ? !initAdjustment(mousePressedPos) : !initParallelWays(mousePressedPos, copyTags)) {
                 return;
             }
             setMode(Mode.dragging);
         }
 
-        //// Calculate distance to the reference line
+        //// Calculate distance to the source path
+        // The nearest segment is used, so the offset follows the cursor along curves
         EastNorth enp = mv.getEastNorth((int) p.getX(), (int) p.getY());
-        EastNorth nearestPointOnRefLine = Helpers.closestPointToLine(referenceSegment.getFirstNode().getEastNorth(),
-                referenceSegment.getSecondNode().getEastNorth(), enp);
+        int segment = pWays.closestSegment(enp.getX(), enp.getY(), closestPoint);
+        if (segment != refSegmentIndex) {
+            refSegmentIndex = segment;
+            refLineDirty = true;
+        }
+        double ax = pWays.getPointX(segment), ay = pWays.getPointY(segment);
+        double bx = pWays.getPointX(segment + 1), by = pWays.getPointY(segment + 1);
 
-        double d = enp.distance(nearestPointOnRefLine);
-        // TODO: abuse of isToTheRightSideOfLine function.
-        boolean toTheRight = Geometry.isToTheRightSideOfLine(referenceSegment.getFirstNode(),
-                referenceSegment.getFirstNode(), referenceSegment.getSecondNode(), new Node(enp));
+        double d = Math.hypot(enp.getX() - closestPoint[0], enp.getY() - closestPoint[1]);
+        // Positive offsets are to the left of the path
+        if ((bx - ax) * (enp.getY() - ay) - (by - ay) * (enp.getX() - ax) < 0) {
+            d = -d;
+        }
+        // Convert to the units of the offset (metres if metric) using the scale at the cursor
+        // The closest point lies beyond the segment on the extended first and last segments of open paths
+        double lengthSq = (bx - ax) * (bx - ax) + (by - ay) * (by - ay);
+        double t = lengthSq == 0 ? 0 : ((closestPoint[0] - ax) * (bx - ax) + (closestPoint[1] - ay) * (by - ay))
+                / lengthSq;
+        double unitScale = pWays.getOffsetScale(segment, Math.max(0, Math.min(t, 1)));
+        d /= unitScale;
 
         if (snap) {
-            // TODO: Very simple snapping
-            // - Snap steps and/or threshold relative to the distance?
-            long closestWholeUnit = Math.round(d);
-            if (Math.abs(closestWholeUnit - d) < snapThreshold) {
-                d = closestWholeUnit;
-            } else {
-                d = closestWholeUnit + Math.signum(closestWholeUnit - d) * -0.5;
+            double snapped = Double.NaN;
+            if (waySnapper != null) {
+                snapped = waySnapper.snap(ax, ay, bx, by, enp.getX(), enp.getY(), d * unitScale,
+                        snapToWaysDistance * mv.getScale());
             }
+            d = Double.isNaN(snapped) ? snapToWholeUnits(d) : snapped / unitScale;
         }
-        helperLineStart = nearestPointOnRefLine;
+        helperLineStart = new EastNorth(closestPoint[0], closestPoint[1]);
         helperLineEnd = enp;
-        if (toTheRight) {
-            d = -d;
+        helperLineDirty = true;
+        offset = d;
+        // Follow the zoom, so round joins match what's on screen
+        pWays.setArcTolerance(roundJoinTolerance * mv.getScale());
+        if (mv.getScale() > 2 * previewScale || mv.getScale() < previewScale / 2) {
+            // Zoomed too far from the detail of the preview. The buffers of the old preview don't fit the new one.
+            offsetWorker.stop();
+            preview = null;
+            offsetWorker = createOffsetWorker();
         }
-        pWays.changeOffset(d);
+        offsetWorker.requestOffset(d);
 
         Main.map.statusLine.setDist(Math.abs(d));
         Main.map.statusLine.repaint();
+        DragMetrics.record(DragMetrics.Step.DRAG_EVENT, startTime, pWays.getNodeCount());
+    }
+
+    private double snapToWholeUnits(double d) {
+        // TODO: Very simple snapping
+        // - Snap steps and/or threshold relative to the distance?
+        double abs = Math.abs(d);
+        long closestWholeUnit = Math.round(abs);
+        if (Math.abs(closestWholeUnit - abs) < snapThreshold) {
+            abs = closestWholeUnit;
+        } else {
+            abs = closestWholeUnit + Math.signum(closestWholeUnit - abs) * -0.5;
+        }
+        return Math.signum(d) * abs;
+    }
+
+    /**
+     * Shows the newest offset calculated by the offset worker, if there is
+     * one. Called from the timer so the map view is repainted at most once per
+     * frame, no matter how fast the drag events arrive.
+     */
+    private void publishOffset() {
+        if (offsetWorker == null)
+            return;
+        OffsetBuffer result = offsetWorker.takeResult();
+        if (result == null)
+            return;
+        long startTime = DragMetrics.start();
+        if (preview != null) {
+            offsetWorker.recycle(preview);
+        }
+        preview = result;
+        previewDirty = true;
         mv.repaint();
+        DragMetrics.record(DragMetrics.Step.PUBLISH, startTime, result.getPositionCount());
+    }
+
+    private void startOffsetWorker(double[] factors, double[] shifts) {
+        dragFactors = factors;
+        dragShifts = shifts;
+        offsetWorker = createOffsetWorker();
+        publishTimer.start();
+    }
+
+    /**
+     * The preview is computed for a copy of the path with the detail visible at
+     * the current scale. Only the final offset is computed at full detail, on release.
+     */
+    private OffsetWorker createOffsetWorker() {
+        previewScale = mv.getScale();
+        return new OffsetWorker(pWays.getPreview(previewTolerance * previewScale), dragFactors, dragShifts);
+    }
+
+    /**
+     * Stops the background calculation and drops the preview
+     */
+    private void stopOffsetWorker() {
+        if (offsetWorker == null)
+            return;
+        publishTimer.stop();
+        offsetWorker.stop();
+        offsetWorker = null;
+        preview = null;
+        waySnapper = null;
+    }
+
+    /**
+     * Adds the parallel ways at the last requested offset to the dataset.
+     * The only point where the dataset is modified.
+     */
+    private void commitParallelWays() {
+        if (pWays == null)
+            return;
+        double[] offsets = new double[offsetFactors.length];
+        for (int k = 0; k < offsets.length; k++) {
+            offsets[k] = offset * offsetFactors[k] + offsetShifts[k];
+        }
+        createdWays = pWays.commit(offsets);
+        getCurrentDataSet().setSelected(createdWays);
+    }
+
+    private void commitAdjustment() {
+        if (pWays == null)
+            return;
+        Main.main.undoRedo.add(pWays.makeMoveCommand(adjustedNodes, offset));
+        adjustedNodes = null;
     }
 
     private boolean matchesCurrentModifiers(ModifiersSpec spec) {
-        return spec.matchWithKnown(alt, shift, ctrl);
+        return spec.matches(modifiers);
     }
 
     @Override
     public void paint(Graphics2D g, MapView mv, Bounds bbox) {
+        // sanity checks
+        if (mv == null)
+            return;
+        if (viewTransform.update(mv)) {
+            refLineDirty = true;
+            helperLineDirty = true;
+            previewDirty = true;
+        }
+        paintSourceWays(g);
         if (mode == Mode.dragging) {
-            // sanity checks
-            if (mv == null)
-                return;
+            long startTime = DragMetrics.start();
 
-            // FIXME: should clip the line (gets insanely slow when zoomed in on a very long line
-            Stroke refLineStroke = new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 10.0f, new float[] {
-                    2f, 2f }, 0f);
-            g.setStroke(refLineStroke);
-            g.setColor(Color.RED);
-            Point p1 = mv.getPoint(referenceSegment.getFirstNode().getEastNorth());
-            Point p2 = mv.getPoint(referenceSegment.getSecondNode().getEastNorth());
-            g.drawLine(p1.x, p1.y, p2.x, p2.y);
+            if (preview != null) {
+                if (previewDirty) {
+                    projectPreview();
+                    previewDirty = false;
+                }
+                g.setStroke(PREVIEW_STROKE);
+                g.setColor(Color.RED);
+                g.draw(previewPath);
+            }
+
+            if (refLineDirty) {
+                int i = refSegmentIndex;
+                refLineVisible = i >= 0 && projectAndClip(pWays.getPointX(i), pWays.getPointY(i),
+                        pWays.getPointX(i + 1), pWays.getPointY(i + 1), refLineScreen);
+                refLineDirty = false;
+            }
+            if (helperLineDirty) {
+                helperLineVisible = projectAndClip(helperLineStart, helperLineEnd, helperLineScreen);
+                helperLineDirty = false;
+            }
 
-            Stroke helpLineStroke = new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL);
-            g.setStroke(helpLineStroke);
             g.setColor(Color.RED);
-            p1 = mv.getPoint(helperLineStart);
-            p2 = mv.getPoint(helperLineEnd);
-            g.drawLine(p1.x, p1.y, p2.x, p2.y);
+            if (refLineVisible) {
+                g.setStroke(REF_LINE_STROKE);
+                g.drawLine(refLineScreen[0], refLineScreen[1], refLineScreen[2], refLineScreen[3]);
+            }
+            if (helperLineVisible) {
+                g.setStroke(HELPER_LINE_STROKE);
+                g.drawLine(helperLineScreen[0], helperLineScreen[1], helperLineScreen[2], helperLineScreen[3]);
+            }
+            DragMetrics.record(DragMetrics.Step.PAINT, startTime, preview != null ? preview.getPositionCount() : 0);
         }
     }
 
+    private void paintSourceWays(Graphics2D g) {
+        if (sourceWays == null || sourceWays.isEmpty())
+            return;
+        double dx = viewTransform.x(0) - sourceWaysOriginX;
+        double dy = viewTransform.y(0) - sourceWaysOriginY;
+        if (sourceWaysDirty || viewTransform.getScale() != sourceWaysScale || Main.proj != sourceWaysProjection
+                || Math.abs(dx) > viewTransform.getWidth() || Math.abs(dy) > viewTransform.getHeight()) {
+            projectSourceWays();
+            sourceWaysDirty = false;
+            dx = 0;
+            dy = 0;
+        }
+        g.translate(dx, dy);
+        g.setStroke(SOURCE_WAY_STROKE);
+        g.setColor(SOURCE_WAY_COLOR);
+        g.draw(sourceWaysPath);
+        g.translate(-dx, -dy);
+    }
+
+    private void projectSourceWays() {
+        sourceWaysPath.reset();
+        // Clipped to the view extended by a view size in each direction, so the path can be reused while panning
+        int width = viewTransform.getWidth(), height = viewTransform.getHeight();
+        double minX = -width - CLIP_MARGIN, minY = -height - CLIP_MARGIN;
+        double maxX = 2 * width + CLIP_MARGIN, maxY = 2 * height + CLIP_MARGIN;
+        for (Way w : sourceWays) {
+            boolean hasPrevious = false;
+            boolean connected = false;
+            double prevX = 0, prevY = 0;
+            for (int i = 0; i < w.getNodesCount(); i++) {
+                EastNorth en = w.getNode(i).getEastNorth();
+                if (en == null) { // Incomplete node, break the line
+                    hasPrevious = false;
+                    continue;
+                }
+                double x = viewTransform.x(en.east());
+                double y = viewTransform.y(en.north());
+                if (hasPrevious) {
+                    connected = appendClipped(sourceWaysPath, prevX, prevY, x, y, connected, minX, minY, maxX, maxY);
+                } else {
+                    connected = false;
+                }
+                prevX = x;
+                prevY = y;
+                hasPrevious = true;
+            }
+        }
+        sourceWaysProjection = Main.proj;
+        sourceWaysScale = viewTransform.getScale();
+        sourceWaysOriginX = viewTransform.x(0);
+        sourceWaysOriginY = viewTransform.y(0);
+    }
+
+    private void projectPreview() {
+        previewPath.reset();
+        double minX = -CLIP_MARGIN, minY = -CLIP_MARGIN;
+        double maxX = viewTransform.getWidth() + CLIP_MARGIN, maxY = viewTransform.getHeight() + CLIP_MARGIN;
+        for (int k = 0; k < preview.copyCount; k++) {
+            int start = preview.getStart(k);
+            int end = start + preview.count[k];
+            double prevX = viewTransform.x(preview.x[start]), prevY = viewTransform.y(preview.y[start]);
+            boolean connected = false;
+            for (int i = start + 1; i < end; i++) {
+                double x = viewTransform.x(preview.x[i]), y = viewTransform.y(preview.y[i]);
+                connected = appendClipped(previewPath, prevX, prevY, x, y, connected, minX, minY, maxX, maxY);
+                prevX = x;
+                prevY = y;
+            }
+        }
+    }
+
+    /**
+     * Appends the part of the segment (x1, y1)-(x2, y2) inside the rectangle to
+     * the path. Like the reference line, so paths extending far outside the view
+     * don't make stroking slow. A new subpath is started where the previous
+     * segment was cut off or left out.
+     *
+     * @param connected whether the path ends at (x1, y1)
+     * @return whether the path now ends at (x2, y2)
+     */
+    private boolean appendClipped(GeneralPath path, double x1, double y1, double x2, double y2, boolean connected,
+            double minX, double minY, double maxX, double maxY) {
+        clipBuffer[0] = x1;
+        clipBuffer[1] = y1;
+        clipBuffer[2] = x2;
+        clipBuffer[3] = y2;
+        if (!Helpers.clipLine(clipBuffer, minX, minY, maxX, maxY))
+            return false;
+        // Ends inside the rectangle aren't moved by the clipping
+        boolean endInside = x2 >= minX && x2 <= maxX && y2 >= minY && y2 <= maxY;
+        if (!connected) {
+            path.moveTo((float) clipBuffer[0], (float) clipBuffer[1]);
+        }
+        if (endInside) {
+            path.lineTo((float) x2, (float) y2);
+        } else {
+            path.lineTo((float) clipBuffer[2], (float) clipBuffer[3]);
+        }
+        return endInside;
+    }
+
+    /**
+     * Projects the line to the screen and clips it against the (slightly extended) view.
+     * Drawing a dashed line which extends far outside of the view is very slow.
+     *
+     * @param out receives the screen coordinates {x1, y1, x2, y2}
+     * @return false if the line isn't visible
+     */
+    private boolean projectAndClip(EastNorth p1, EastNorth p2, int[] out) {
+        if (p1 == null || p2 == null)
+            return false;
+        return projectAndClip(p1.east(), p1.north(), p2.east(), p2.north(), out);
+    }
+
+    private boolean projectAndClip(double x1, double y1, double x2, double y2, int[] out) {
+        clipBuffer[0] = viewTransform.x(x1);
+        clipBuffer[1] = viewTransform.y(y1);
+        clipBuffer[2] = viewTransform.x(x2);
+        clipBuffer[3] = viewTransform.y(y2);
+        if (!Helpers.clipLine(clipBuffer, -CLIP_MARGIN, -CLIP_MARGIN, viewTransform.getWidth() + CLIP_MARGIN,
+                viewTransform.getHeight() + CLIP_MARGIN))
+            return false;
+        for (int i = 0; i < 4; i++) {
+            out[i] = (int) Math.round(clipBuffer[i]);
+        }
+        return true;
+    }
+
     private boolean isModifiersValidForDragMode() {
-        return (!alt && !shift && !ctrl) || matchesCurrentModifiers(snapModifierCombo)
-                || matchesCurrentModifiers(copyTagsModifierCombo);
+        return modifiers == 0 || matchesCurrentModifiers(snapModifierCombo)
+                || matchesCurrentModifiers(copyTagsModifierCombo) || matchesCurrentModifiers(adjustModifierCombo);
     }
 
     private void updateFlagsOnlyChangeableOnPress() {
         copyTags = copyTagsDefault != matchesCurrentModifiers(copyTagsModifierCombo);
+        adjust = matchesCurrentModifiers(adjustModifierCombo);
     }
 
     private void updateFlagsChangeableAlways() {
-        snap = snapDefault != matchesCurrentModifiers(snapModifierCombo);
+        snap = snapDefault != (matchesCurrentModifiers(snapModifierCombo)
+                || adjust && matchesCurrentModifiers(adjustSnapModifierCombo));
     }
 
     //// We keep the source ways and the selection in sync so the user can see the source way's tags
     private void addSourceWay(Way w) {
         assert (sourceWays != null);
         getCurrentDataSet().addSelected(w);
-        w.setHighlighted(true);
         sourceWays.add(w);
+        sourceWaysDirty = true;
     }
 
     private void removeSourceWay(Way w) {
         assert (sourceWays != null);
         getCurrentDataSet().clearSelection(w);
-        w.setHighlighted(false);
         sourceWays.remove(w);
+        sourceWaysDirty = true;
     }
 
     private void clearSourceWays() {
@@ -497,10 +987,8 @@ public class ParallelWayMode extends MapMode implements AWTEventListener, MapVie
         if (sourceWays == null)
             return;
         getCurrentDataSet().clearSelection(sourceWays);
-        for (Way w : sourceWays) {
-            w.setHighlighted(false);
-        }
         sourceWays.clear();
+        sourceWaysDirty = true;
     }
 
     private void resetMouseTrackingState() {
@@ -511,9 +999,12 @@ public class ParallelWayMode extends MapMode implements AWTEventListener, MapVie
 
     // TODO: rename
     private boolean initParallelWays(Point p, boolean copyTags) {
+        long startTime = DragMetrics.start();
         referenceSegment = mv.getNearestWaySegment(p, Way.isUsablePredicate, true);
         if (referenceSegment == null)
             return false;
+        refSegmentIndex = -1;
+        refLineDirty = true;
 
         if (!sourceWays.contains(referenceSegment.way)) {
             clearSourceWays();
@@ -530,16 +1021,32 @@ public class ParallelWayMode extends MapMode implements AWTEventListener, MapVie
                 }
                 i++;
             }
-            pWays = new ParallelWays(sourceWays, copyTags, referenceWayIndex);
-            pWays.commit();
-            getCurrentDataSet().setSelected(pWays.ways);
+            Collection<Node> splitNodes = getCurrentDataSet().getSelectedNodes();
+            if (splitNodes.isEmpty()) {
+                pWays = pWaysCache.get(sourceWays, copyTags, referenceWayIndex);
+            } else {
+                List<PathBuilder.Span> path = PathBuilder.section(PathBuilder.build(sourceWays),
+                        new HashSet<Node>(splitNodes), referenceSegment.way, referenceSegment.lowerIndex);
+                pWays = pWaysCache.get(path, copyTags);
+            }
+            pWays.setTrimSelfIntersections(trimSelfIntersections);
+            pWays.setSimplifyTolerance(simplifyTolerance);
+            pWays.setMetricOffsets(metricOffsets);
+            applyJoinPreferences(pWays, mv.getScale());
+            startDragging(sourceWays, offsetFactors, offsetShifts);
+            DragMetrics.record(DragMetrics.Step.INIT, startTime, pWays.getNodeCount());
             return true;
         } catch (IllegalArgumentException e) {
             // TODO: Not ideal feedback. Maybe changing the cursor could be a good mechanism?
+            String message = tr("ParallelWayAction\n" +
+                    "The ways selected must form a simple branchless path");
+            Node breakNode = e instanceof NoSpanningPathException ? ((NoSpanningPathException) e).getNode() : null;
+            if (breakNode != null && breakNode.getCoor() != null) {
+                message += "\n" + tr("The path breaks at {0}, {1}", breakNode.getCoor().lat(), breakNode.getCoor().lon());
+            }
             JOptionPane.showMessageDialog(
                     Main.parent,
-                    tr("ParallelWayAction\n" +
-                            "The ways selected must form a simple branchless path"),
+                    message,
                     tr("Make parallel way error"),
                     JOptionPane.INFORMATION_MESSAGE);
             // The error dialog prevents us from getting the mouseReleased event
@@ -549,7 +1056,155 @@ public class ParallelWayMode extends MapMode implements AWTEventListener, MapVie
         }
     }
 
-    private String prefKey(String subKey) {
+    /**
+     * Prepares moving the nodes of the selected ways to a new offset from
+     * the way at p, instead of making new ways. The selected ways must have
+     * as many nodes as the reference way, as they have when previously made
+     * parallel to it with miter joins. Corners beveled by the miter limit
+     * (miter-limit, 4 by default) add nodes, so such ways can't be adjusted.
+     */
+    private boolean initAdjustment(Point p) {
+        long startTime = DragMetrics.start();
+        if (sourceWays.isEmpty())
+            return false;
+        Predicate<OsmPrimitive> isReference = new Predicate<OsmPrimitive>() {
+            @Override
+            public boolean evaluate(OsmPrimitive o) {
+                return Way.isUsablePredicate.evaluate(o) && !sourceWays.contains(o);
+            }
+        };
+        referenceSegment = mv.getNearestWaySegment(p, isReference, true);
+        if (referenceSegment == null)
+            return false;
+        refSegmentIndex = -1;
+        refLineDirty = true;
+
+        String error = null;
+        List<PathBuilder.Span> reference = null;
+        try {
+            List<Node> nodes = PathBuilder.getNodes(PathBuilder.build(sourceWays));
+            // The reference is the chain of ways through the clicked way, the way it was made parallel
+            reference = PathBuilder.build(PathBuilder.chainThrough(referenceSegment.way, isReference));
+            if (nodes.get(0) != nodes.get(nodes.size() - 1)) {
+                // The selected ways may have been made from a section of it, between the nodes nearest their ends
+                List<Node> referenceNodes = PathBuilder.getNodes(reference);
+                Collection<Node> ends = Arrays.asList(nearestNode(referenceNodes, nodes.get(0)),
+                        nearestNode(referenceNodes, nodes.get(nodes.size() - 1)));
+                reference = PathBuilder.section(reference, ends, referenceSegment.way,
+                        referenceSegment.lowerIndex);
+            }
+            pWays = pWaysCache.get(reference, false);
+            adjustedNodes = matchVertices(nodes, pWays);
+            if (adjustedNodes == null) {
+                error = tr("The selected ways must have as many nodes as the reference way ({0}). "
+                        + "Ways made with bevel or round joins, or with corners sharper than the miter limit, "
+                        + "have more.", pWays.getNodeCount());
+            }
+        } catch (IllegalArgumentException e) {
+            error = tr("The ways selected must form a simple branchless path");
+        }
+        if (error != null) {
+            JOptionPane.showMessageDialog(Main.parent, error, tr("Make parallel way error"),
+                    JOptionPane.INFORMATION_MESSAGE);
+            // The error dialog prevents us from getting the mouseReleased event
+            resetMouseTrackingState();
+            pWays = null;
+            adjustedNodes = null;
+            return false;
+        }
+
+        // Other joins would change the number of nodes
+        pWays.setJoinStyle(ParallelWays.JoinStyle.MITER);
+        pWays.setMiterLimit(Double.POSITIVE_INFINITY);
+        pWays.setTrimSelfIntersections(trimSelfIntersections);
+        pWays.setMetricOffsets(metricOffsets);
+        List<Way> snapExclude = new ArrayList<Way>(sourceWays);
+        for (PathBuilder.Span span : reference) {
+            snapExclude.add(span.way);
+        }
+        startDragging(snapExclude, new double[] { 1 }, new double[] { 0 });
+        DragMetrics.record(DragMetrics.Step.INIT, startTime, pWays.getNodeCount());
+        return true;
+    }
+
+    private static Node nearestNode(List<Node> nodes, Node target) {
+        EastNorth en = target.getEastNorth();
+        Node nearest = null;
+        double best = Double.POSITIVE_INFINITY;
+        for (Node n : nodes) {
+            double d = n.getEastNorth().distanceSq(en);
+            if (d < best) {
+                best = d;
+                nearest = n;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Pairs the nodes along the selected ways with the vertices of the
+     * reference path. The selected ways may run in the other direction, and
+     * rings may start anywhere.
+     *
+     * @return the node for each vertex of the reference, or null if the
+     *         nodes can't be paired
+     */
+    private static List<Node> matchVertices(List<Node> nodes, ParallelWays reference) {
+        int n = reference.getNodeCount();
+        boolean closed = nodes.get(0) == nodes.get(nodes.size() - 1);
+        if (nodes.size() != n || closed != reference.isClosedPath())
+            return null;
+        Node[] matched = new Node[n];
+        if (!closed) {
+            boolean reversed = distanceSq(nodes.get(0), reference, n - 1) + distanceSq(nodes.get(n - 1), reference, 0)
+                    < distanceSq(nodes.get(0), reference, 0) + distanceSq(nodes.get(n - 1), reference, n - 1);
+            for (int j = 0; j < n; j++) {
+                matched[reversed ? n - 1 - j : j] = nodes.get(j);
+            }
+        } else {
+            int m = n - 1;
+            int start = 0;
+            double best = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < m; i++) {
+                double d = distanceSq(nodes.get(0), reference, i);
+                if (d < best) {
+                    best = d;
+                    start = i;
+                }
+            }
+            int dir = distanceSq(nodes.get(1), reference, (start + 1) % m)
+                    <= distanceSq(nodes.get(1), reference, (start + m - 1) % m) ? 1 : m - 1;
+            for (int j = 0; j < m; j++) {
+                matched[(start + dir * j) % m] = nodes.get(j);
+            }
+            matched[m] = matched[0];
+        }
+        return Arrays.asList(matched);
+    }
+
+    private static double distanceSq(Node node, ParallelWays path, int i) {
+        EastNorth en = node.getEastNorth();
+        double dx = en.getX() - path.getPointX(i);
+        double dy = en.getY() - path.getPointY(i);
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Starts the offset calculations and snapping for a new drag of pWays
+     */
+    private void startDragging(Collection<Way> snapExclude, double[] factors, double[] shifts) {
+        offset = 0;
+        if (snapToWays) {
+            // Index the neighbouring ways once, so snapping doesn't need to search the dataset on every event
+            double[] bounds = pWays.getBounds();
+            double margin = snapSearchDistance * pWays.getMaxOffsetScale();
+            waySnapper = WaySnapper.build(getCurrentDataSet(), snapExclude, bounds[0] - margin, bounds[1] - margin,
+                    bounds[2] + margin, bounds[3] + margin);
+        }
+        startOffsetWorker(factors, shifts);
+    }
+
+    private static String prefKey(String subKey) {
         return "edit.make-parallel-way-action." + subKey;
     }
 
@@ -8,6 +8,7 @@ package org.openstreetmap.josm.plugins.parallelway;
 
 import org.openstreetmap.josm.Main;
 import org.openstreetmap.josm.gui.IconToggleButton;
+import org.openstreetmap.josm.gui.MainMenu;
 import org.openstreetmap.josm.gui.MapFrame;
 import org.openstreetmap.josm.plugins.Plugin;
 import org.openstreetmap.josm.plugins.PluginInformation;
@@ -16,6 +17,7 @@ public class ParallelWayPlugin extends Plugin {
 
     public ParallelWayPlugin(PluginInformation info) {
         super(info);
+        MainMenu.add(Main.main.menu.toolsMenu, new MakeParallelWaysAction());
     }
 
     @Override
@@ -7,189 +7,1085 @@
 package org.openstreetmap.josm.plugins.parallelway;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.openstreetmap.josm.Main;
-import org.openstreetmap.josm.actions.CombineWayAction;
-import org.openstreetmap.josm.command.AddCommand;
 import org.openstreetmap.josm.command.Command;
-import org.openstreetmap.josm.command.SequenceCommand;
 import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.data.osm.Node;
 import org.openstreetmap.josm.data.osm.Way;
-import org.openstreetmap.josm.tools.Geometry;
 
 // ParallelPath better name?
 public class ParallelWays {
-    final List<Way> ways;
-    private final List<Node> sortedNodes;
+    /**
+     * How the offset path goes around the outside of a corner. The inside
+     * of a corner is always a miter.
+     */
+    public enum JoinStyle {
+        /** The offset lines are extended until they meet, unless the miter limit is exceeded */
+        MITER,
+        /** The offset lines are joined by a straight segment */
+        BEVEL,
+        /** The offset lines are joined by an arc around the corner */
+        ROUND
+    }
+
+    // How close to anti-parallel two neighboring segments must be before we stop trying to intersect them
+    private static final double PARALLEL_EPSILON = 1e-10;
+
+    // The fewest nodes worth handing to another thread
+    private static final int MIN_CHUNK_SIZE = 10000;
+    // Paths with at least this many nodes are offset in parallel chunks, unless changed by setParallelThreshold
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 50000;
+
+    // Shared by all instances, created on first use
+    private static ExecutorService offsetPool;
+
+    // The step (in degrees) over which the scale of the projection is measured
+    private static final double SCALE_STEP = 1e-4;
+
+    // The source ways along the path, the first vertex of each, and whether the way runs against the path
+    private final Way[] pathWays;
+    private final int[] wayFirstVertex;
+    private final boolean[] wayReversed;
+    // The tagged source nodes and their vertices, in path order. Only if copying tags.
+    private final int[] taggedVertices;
+    private final Node[] taggedNodes;
 
     private final int nodeCount;
+    private final boolean closed;
+    private final boolean copyTags;
+
+    // Source geometry, segment normals and per-vertex miter vectors, kept as
+    // primitive arrays so computeOffset doesn't have to allocate anything.
+    private final double[] ptsX;
+    private final double[] ptsY;
+    private final double[] normalsX;
+    private final double[] normalsY;
+    private final double[] miterX;
+    private final double[] miterY;
+    // Of the longest miter at a corner, relative to the offset. Decides
+    // whether a miter limit bevels any corner, whatever the offset.
+    private double maxMiterLengthSq;
 
-    private final EastNorth[] pts;
-    private final EastNorth[] normals;
+    // EastNorth units per metre at each vertex, and the miters scaled by it. Computed once, when
+    // the offsets are first set to be in metres or the created ways are first simplified.
+    private double[] metreScale;
+    private double[] metricMiterX;
+    private double[] metricMiterY;
+    private double maxMetreScale;
+    private boolean metricOffsets;
+
+    private JoinStyle joinStyle = JoinStyle.MITER;
+    // Longest allowed miter, relative to the offset
+    private double miterLimit = Double.POSITIVE_INFINITY;
+    // How far round joins may deviate from a true arc, in EastNorth units.
+    // Typically follows the map scale, so it's changed while offsets are computed.
+    private volatile double arcTolerance = 0.1;
+    private int maxJoinNodes = 16;
+
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    // The tags to copy, if read ahead of makeWays by snapshotTags
+    private List<Map<String, String>> wayKeysSnapshot;
+    private List<Map<String, String>> nodeKeysSnapshot;
+
+    // Scratch buffers for makeWays and makeMoveCommand. Sized by ensureScratchCapacity.
+    private double[] offsetX;
+    private double[] offsetY;
+    private int[] offsetSource;
+
+    private boolean trimSelfIntersections;
+    private SelfIntersectionTrimmer trimmer;
+    // In metres. 0 disables simplification.
+    private double simplifyTolerance;
+
+    // Built on first use. Only to be used from the EDT.
+    private SegmentIndex segmentIndex;
+    // The decimated copy of the path for previews (possibly this), see getPreview
+    private ParallelWays preview;
+    private double previewTolerance;
 
     // Need a reference way to determine the direction of the offset when we manage multiple ways
     public ParallelWays(Collection<Way> sourceWays, boolean copyTags, int refWayIndex) {
-        // Possible/sensible to use PrimetiveDeepCopy here?
+        //// Find a linear ordering of the ways. Fails if there isn't one.
+        // Make sure the path runs in the direction of the reference way, so the offset isn't inverted.
+        this(orient(PathBuilder.build(sourceWays), sourceWays, refWayIndex), copyTags);
+    }
 
-        //// Make a deep copy of the ways, keeping the copied ways connected
-        // TODO: This assumes the first/last nodes of the ways are the only possible shared nodes.
-        HashMap<Node, Node> splitNodeMap = new HashMap<Node, Node>(sourceWays.size());
-        for (Way w : sourceWays) {
-            if (!splitNodeMap.containsKey(w.firstNode())) {
-                splitNodeMap.put(w.firstNode(), copyNode(w.firstNode(), copyTags));
-            }
-            if (!splitNodeMap.containsKey(w.lastNode())) {
-                splitNodeMap.put(w.lastNode(), copyNode(w.lastNode(), copyTags));
-            }
+    /**
+     * @param path the (parts of) ways to copy, in order. The offset is to the
+     *            left of the path. Only the nodes in the spans are looked at.
+     */
+    public ParallelWays(List<PathBuilder.Span> path, boolean copyTags) {
+        long startTime = DragMetrics.start();
+        this.copyTags = copyTags;
+        closed = PathBuilder.isClosed(path);
+
+        //// Collect the geometry along the path.
+        // Nothing is copied yet; the nodes and ways are only created when committing.
+        // A node visited several times by the path gets one vertex per visit
+        // since each visit is offset differently.
+        int totalNodes = 1;
+        for (PathBuilder.Span span : path) {
+            totalNodes += span.getNodesCount() - 1;
         }
-        ways = new ArrayList<Way>(sourceWays.size());
-        for (Way w : sourceWays) {
-            Way wCopy = new Way();
-            wCopy.addNode(splitNodeMap.get(w.firstNode()));
-            for (int i = 1; i < w.getNodesCount() - 1; i++) {
-                wCopy.addNode(copyNode(w.getNode(i), copyTags));
-            }
-            wCopy.addNode(splitNodeMap.get(w.lastNode()));
-            if (copyTags) {
-                wCopy.setKeys(w.getKeys());
-            }
-            ways.add(wCopy);
-        }
-        sourceWays = null; // Ensure that we only use the copies from now
-
-        //// Find a linear ordering of the nodes. Fail if there isn't one.
-        CombineWayAction.NodeGraph nodeGraph = CombineWayAction.NodeGraph.createUndirectedGraphFromNodeWays(ways);
-        sortedNodes = nodeGraph.buildSpanningPath();
-        if (sortedNodes == null)
-            throw new IllegalArgumentException("Ways must have spanning path"); // Create a dedicated exception?
-
-        //// Ugly method of ensuring that the offset isn't inverted. I'm sure there is a better and more elegant way, but I'm starting to get sleepy, so I do this for now.
-        {
-            Way refWay = ways.get(refWayIndex);
-            boolean refWayReversed = true;
-            for (int i = 0; i < sortedNodes.size() - 1; i++) {
-                if (sortedNodes.get(i) == refWay.firstNode() && sortedNodes.get(i + 1) == refWay.getNode(1)) {
-                    refWayReversed = false;
-                    break;
+        nodeCount = totalNodes;
+        ptsX = new double[nodeCount];
+        ptsY = new double[nodeCount];
+        pathWays = new Way[path.size()];
+        wayFirstVertex = new int[path.size()];
+        wayReversed = new boolean[path.size()];
+        List<Integer> tagged = new ArrayList<Integer>();
+        List<Node> taggedSources = new ArrayList<Node>();
+        int i = 0;
+        for (int s = 0; s < path.size(); s++) {
+            PathBuilder.Span span = path.get(s);
+            Way w = span.way;
+            pathWays[s] = w;
+            wayFirstVertex[s] = s == 0 ? 0 : i - 1;
+            wayReversed[s] = span.reversed;
+            int n = span.getNodesCount();
+            // The first node is shared with the previous way
+            for (int t = s == 0 ? 0 : 1; t < n; t++) {
+                Node node = span.getNode(t);
+                EastNorth en = node.getEastNorth();
+                ptsX[i] = en.getX();
+                ptsY[i] = en.getY();
+                if (copyTags && node.hasKeys() && !(closed && i == nodeCount - 1)) {
+                    tagged.add(i);
+                    taggedSources.add(node);
                 }
+                i++;
             }
-            if (refWayReversed) {
-                Collections.reverse(sortedNodes); // need to keep the orientation of the reference way.
-            }
         }
+        taggedVertices = new int[tagged.size()];
+        for (int t = 0; t < taggedVertices.length; t++) {
+            taggedVertices[t] = tagged.get(t);
+        }
+        taggedNodes = taggedSources.toArray(new Node[taggedSources.size()]);
 
-        //// Initialize the required parameters. (segment normals, etc.)
-        nodeCount = sortedNodes.size();
-        pts = new EastNorth[nodeCount];
-        normals = new EastNorth[nodeCount - 1];
-        int i = 0;
-        for (Node n : sortedNodes) {
-            EastNorth t = n.getEastNorth();
-            pts[i] = t;
-            i++;
+        //// Initialize the required parameters. (segment normals, miters, etc.)
+        normalsX = new double[nodeCount - 1];
+        normalsY = new double[nodeCount - 1];
+        miterX = new double[nodeCount];
+        miterY = new double[nodeCount];
+        computeMiters();
+
+        DragMetrics.record(DragMetrics.Step.CONSTRUCT, startTime, nodeCount);
+    }
+
+    /**
+     * A copy of the source path with only the kept vertices, for previews.
+     * Has no ways, so it can't be committed.
+     */
+    private ParallelWays(ParallelWays source, boolean[] keep, int count) {
+        copyTags = false;
+        closed = source.closed;
+        nodeCount = count;
+        pathWays = new Way[0];
+        wayFirstVertex = new int[0];
+        wayReversed = new boolean[0];
+        taggedVertices = new int[0];
+        taggedNodes = new Node[0];
+        ptsX = new double[nodeCount];
+        ptsY = new double[nodeCount];
+        int j = 0;
+        for (int i = 0; i < source.nodeCount; i++) {
+            if (keep[i]) {
+                ptsX[j] = source.ptsX[i];
+                ptsY[j] = source.ptsY[i];
+                j++;
+            }
         }
+        normalsX = new double[nodeCount - 1];
+        normalsY = new double[nodeCount - 1];
+        miterX = new double[nodeCount];
+        miterY = new double[nodeCount];
+        computeMiters();
+    }
+
+    private void computeMiters() {
+        int i;
         for (i = 0; i < nodeCount - 1; i++) {
-            double dx = pts[i + 1].getX() - pts[i].getX();
-            double dy = pts[i + 1].getY() - pts[i].getY();
+            double dx = ptsX[i + 1] - ptsX[i];
+            double dy = ptsY[i + 1] - ptsY[i];
             double len = Math.sqrt(dx * dx + dy * dy);
-            normals[i] = new EastNorth(-dy / len, dx / len);
+            normalsX[i] = -dy / len;
+            normalsY[i] = dx / len;
+        }
+
+        for (i = 1; i < nodeCount - 1; i++) {
+            setMiter(i, normalsX[i - 1], normalsY[i - 1], normalsX[i], normalsY[i]);
+        }
+        if (isClosedPath()) {
+            setMiter(0, normalsX[nodeCount - 2], normalsY[nodeCount - 2], normalsX[0], normalsY[0]);
+            miterX[nodeCount - 1] = miterX[0];
+            miterY[nodeCount - 1] = miterY[0];
+        } else {
+            miterX[0] = normalsX[0];
+            miterY[0] = normalsY[0];
+            miterX[nodeCount - 1] = normalsX[nodeCount - 2];
+            miterY[nodeCount - 1] = normalsY[nodeCount - 2];
+        }
+
+        maxMiterLengthSq = 0;
+        for (i = 0; i < nodeCount; i++) {
+            if (previousSegment(i) >= 0) {
+                maxMiterLengthSq = Math.max(maxMiterLengthSq, miterX[i] * miterX[i] + miterY[i] * miterY[i]);
+            }
+        }
+    }
+
+    private static List<PathBuilder.Span> orient(List<PathBuilder.Span> path, Collection<Way> sourceWays,
+            int refWayIndex) {
+        int i = 0;
+        for (Way w : sourceWays) {
+            if (i++ == refWayIndex) {
+                PathBuilder.orient(path, w);
+                break;
+            }
+        }
+        return path;
+    }
+
+    /**
+     * The lines parallel to two neighboring segments, both offset by d, intersect at
+     * p + d * (n0 + n1) / (1 + dot(n0, n1)), where p is the shared vertex and n0, n1 are the
+     * segment normals. So the intersection can be precomputed as a vector which only
+     * needs to be scaled by d.
+     */
+    private void setMiter(int i, double n0x, double n0y, double n1x, double n1y) {
+        double denom = 1 + n0x * n1x + n0y * n1y;
+        if (denom < PARALLEL_EPSILON) {
+            // The segments fold back on themselves. There's no sensible intersection,
+            // so just use the normal of the outgoing segment.
+            miterX[i] = n1x;
+            miterY[i] = n1y;
+        } else {
+            miterX[i] = (n0x + n1x) / denom;
+            miterY[i] = (n0y + n1y) / denom;
         }
     }
 
     public boolean isClosedPath() {
-        return sortedNodes.get(0) == sortedNodes.get(sortedNodes.size() - 1);
+        return closed;
+    }
+
+    /**
+     * Whether the offsets are in metres rather than EastNorth units. The scale
+     * of the projection varies along long paths (with the latitude in Mercator),
+     * so it's measured at each vertex, once.
+     *
+     * Must not be changed while other threads compute offsets.
+     */
+    public void setMetricOffsets(boolean metric) {
+        if (metric && metreScale == null) {
+            computeMetreScale();
+        }
+        metricOffsets = metric;
+    }
+
+    /**
+     * Measures the scale of the projection at each vertex over a short step
+     * towards the equator. Assumes a conformal projection (like Mercator),
+     * where the scale is the same in all directions.
+     */
+    private void computeMetreScale() {
+        long startTime = DragMetrics.start();
+        metreScale = new double[nodeCount];
+        metricMiterX = new double[nodeCount];
+        metricMiterY = new double[nodeCount];
+        maxMetreScale = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            EastNorth en = new EastNorth(ptsX[i], ptsY[i]);
+            LatLon ll = Main.proj.eastNorth2latlon(en);
+            LatLon step = new LatLon(ll.lat() > 0 ? ll.lat() - SCALE_STEP : ll.lat() + SCALE_STEP, ll.lon());
+            double metres = ll.greatCircleDistance(step);
+            metreScale[i] = metres > 0 ? en.distance(Main.proj.latlon2eastNorth(step)) / metres : 1;
+            metricMiterX[i] = miterX[i] * metreScale[i];
+            metricMiterY[i] = miterY[i] * metreScale[i];
+            maxMetreScale = Math.max(maxMetreScale, metreScale[i]);
+        }
+        DragMetrics.record(DragMetrics.Step.METRE_SCALE, startTime, nodeCount);
+    }
+
+    /**
+     * @return EastNorth units per unit of offset at the point t (0..1) along the segment
+     */
+    public double getOffsetScale(int segment, double t) {
+        if (!metricOffsets)
+            return 1;
+        return metreScale[segment] + t * (metreScale[segment + 1] - metreScale[segment]);
+    }
+
+    /**
+     * @return the most EastNorth units per unit of offset anywhere along the path
+     */
+    public double getMaxOffsetScale() {
+        return metricOffsets ? maxMetreScale : 1;
+    }
+
+    private void ensureScratchCapacity() {
+        int capacity = getMaxOutputCount();
+        if (offsetX == null || offsetX.length < capacity) {
+            offsetX = new double[capacity];
+            offsetY = new double[capacity];
+            offsetSource = new int[capacity];
+        }
+    }
+
+    /**
+     * Calculates the positions of the nodes offset by d, without touching the nodes.
+     *
+     * The positions are written to the output arrays starting at index 'start'.
+     * The output arrays must have room for getMaxOutputCount() elements from there.
+     *
+     * Doesn't modify any state, so it's safe to call from other threads than the EDT.
+     * Paths of at least DEFAULT_PARALLEL_THRESHOLD nodes (see setParallelThreshold) are split into chunks
+     * computed concurrently, and the call returns when all are done.
+     *
+     * @param outSource receives the source vertex of each position, may be null. Joins
+     *            give several consecutive positions from the same vertex.
+     * @return the number of positions written
+     */
+    public int computeOffset(final double d, final double[] outX, final double[] outY, final int start,
+            final int[] outSource) {
+        final int chunks = getChunkCount();
+        if (!hasJoins()) {
+            // The miters are precomputed, so every vertex is independent of its neighbors
+            if (chunks > 1) {
+                List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>(chunks);
+                for (int c = 0; c < chunks; c++) {
+                    final int from = getChunkStart(c, chunks);
+                    final int to = getChunkStart(c + 1, chunks);
+                    tasks.add(new Callable<Integer>() {
+                        @Override
+                        public Integer call() {
+                            offsetMiters(d, outX, outY, start + from, outSource, from, to);
+                            return to - from;
+                        }
+                    });
+                }
+                if (runChunks(tasks) != null)
+                    return nodeCount;
+            }
+            offsetMiters(d, outX, outY, start, outSource, 0, nodeCount);
+            return nodeCount;
+        }
+
+        //// Same as offsetMiters, except that the outside of the corners may be replaced by a join
+        // Joins vary the number of positions per vertex, so the chunks are counted before they are written.
+        final double tolerance = arcTolerance;
+        int end = -1;
+        if (chunks > 1) {
+            List<Callable<Integer>> counts = new ArrayList<Callable<Integer>>(chunks);
+            for (int c = 0; c < chunks; c++) {
+                final int from = getChunkStart(c, chunks);
+                final int to = getChunkStart(c + 1, chunks);
+                counts.add(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return countJoinPositions(d, tolerance, from, to);
+                    }
+                });
+            }
+            int[] chunkCounts = runChunks(counts);
+            if (chunkCounts != null) {
+                List<Callable<Integer>> writes = new ArrayList<Callable<Integer>>(chunks);
+                int j = start;
+                for (int c = 0; c < chunks; c++) {
+                    final int from = getChunkStart(c, chunks);
+                    final int to = getChunkStart(c + 1, chunks);
+                    final int chunkStart = j;
+                    writes.add(new Callable<Integer>() {
+                        @Override
+                        public Integer call() {
+                            return offsetJoins(d, tolerance, outX, outY, chunkStart, outSource, from, to);
+                        }
+                    });
+                    j += chunkCounts[c];
+                }
+                if (runChunks(writes) != null) {
+                    end = j;
+                }
+            }
+        }
+        if (end < 0) {
+            end = offsetJoins(d, tolerance, outX, outY, start, outSource, 0, nodeCount);
+        }
+        if (isClosedPath()) {
+            // Same as the first position, which may be part of a join
+            outX[end - 1] = outX[start];
+            outY[end - 1] = outY[start];
+        }
+        return end - start;
     }
 
     /**
-     * Offsets the way(s) d units. Positive d means to the left (relative to the reference way)
-     * @param d
+     * Offsets the vertices from..to-1 along their miters, writing them from index j
      */
-    public void changeOffset(double d) {
+    private void offsetMiters(double d, double[] outX, double[] outY, int j, int[] outSource, int from, int to) {
         //// This is the core algorithm:
-        /* 1. Calculate a parallel line, offset by 'd', to each segment in
-         *    the path
-         * 2. Find the intersection of lines belonging to neighboring
-         *    segments. These become the new node positions
-         * 3. Do some special casing for closed paths
+        /* Each node is moved along its precomputed miter vector. The miter
+         * vector is scaled such that the result is the intersection of the
+         * lines parallel to the neighboring segments, offset by 'd'.
          *
-         * Simple and probably not even close to optimal performance wise
+         * The special casing for closed paths and end nodes is taken care of
+         * when the miters are computed. Metric offsets use miters scaled
+         * by the projection scale at each vertex.
          */
+        double[] px = ptsX;
+        double[] py = ptsY;
+        double[] mx = metricOffsets ? metricMiterX : miterX;
+        double[] my = metricOffsets ? metricMiterY : miterY;
+        if (j == from) {
+            // The common case: the positions have the same index as their vertices. The JIT only turns
+            // the loops into SIMD instructions when it can see that, and does best with one array per loop.
+            for (int i = from; i < to; i++) {
+                outX[i] = px[i] + d * mx[i];
+            }
+            for (int i = from; i < to; i++) {
+                outY[i] = py[i] + d * my[i];
+            }
+            if (outSource != null) {
+                for (int i = from; i < to; i++) {
+                    outSource[i] = i;
+                }
+            }
+            return;
+        }
+        // Same as above, one element at a time. (E.g. the later copies in an OffsetBuffer)
+        int shift = j - from;
+        for (int i = from; i < to; i++) {
+            outX[shift + i] = px[i] + d * mx[i];
+            outY[shift + i] = py[i] + d * my[i];
+        }
+        if (outSource != null) {
+            for (int i = from; i < to; i++) {
+                outSource[shift + i] = i;
+            }
+        }
+    }
 
-        EastNorth[] ppts = new EastNorth[nodeCount];
+    /**
+     * Offsets the vertices from..to-1 with joins, writing them from index j.
+     * The last vertex of a closed path is left for the caller.
+     *
+     * @return the index after the last position written
+     */
+    private int offsetJoins(double d, double tolerance, double[] outX, double[] outY, int j, int[] outSource,
+            int from, int to) {
+        for (int i = from; i < to; i++) {
+            // The offset at this vertex in EastNorth units
+            double di = metricOffsets ? d * metreScale[i] : d;
+            int joinCount = joinSegments(i, di, tolerance);
+            if (joinCount > 0) {
+                int prev = previousSegment(i);
+                double n0x = normalsX[prev], n0y = normalsY[prev];
+                double n1x = normalsX[i], n1y = normalsY[i];
+                double cross = n0x * n1y - n0y * n1x;
+                j = addJoin(ptsX[i], ptsY[i], di, n0x, n0y, n1x, n1y, cross, joinCount, outX, outY, j);
+                if (outSource != null) {
+                    for (int k = j - joinCount - 1; k < j; k++) {
+                        outSource[k] = i;
+                    }
+                }
+                continue;
+            }
+            outX[j] = ptsX[i] + di * miterX[i];
+            outY[j] = ptsY[i] + di * miterY[i];
+            if (outSource != null) {
+                outSource[j] = i;
+            }
+            j++;
+        }
+        return j;
+    }
 
-        EastNorth prevA = add(pts[0], mul(normals[0], d));
-        EastNorth prevB = add(pts[1], mul(normals[0], d));
-        for (int i = 1; i < nodeCount - 1; i++) {
-            EastNorth A = add(pts[i], mul(normals[i], d));
-            EastNorth B = add(pts[i + 1], mul(normals[i], d));
-            if (Geometry.segmentsParallel(A, B, prevA, prevB)) {
-                ppts[i] = A;
-            } else {
-                ppts[i] = Geometry.getLineLineIntersection(A, B, prevA, prevB);
+    /**
+     * @return the number of positions offsetJoins writes for the vertices from..to-1
+     */
+    private int countJoinPositions(double d, double tolerance, int from, int to) {
+        int count = to - from;
+        for (int i = from; i < to; i++) {
+            count += joinSegments(i, metricOffsets ? d * metreScale[i] : d, tolerance);
+        }
+        return count;
+    }
+
+    /**
+     * @return the segment before vertex i, or -1 at the ends of an open path
+     *         and the last vertex of a closed path
+     */
+    private int previousSegment(int i) {
+        return i > 0 && i < nodeCount - 1 ? i - 1 : (closed && i == 0 ? nodeCount - 2 : -1);
+    }
+
+    /**
+     * @param d the offset at the vertex in EastNorth units
+     * @return the number of segments of the join at vertex i, 0 if it's a miter
+     */
+    private int joinSegments(int i, double d, double tolerance) {
+        int prev = previousSegment(i);
+        if (prev < 0)
+            return 0;
+        double n0x = normalsX[prev], n0y = normalsY[prev];
+        double n1x = normalsX[i], n1y = normalsY[i];
+        double cross = n0x * n1y - n0y * n1x;
+        // Positive d is to the left, so the left side is the outside of right turns
+        if (d * cross >= 0)
+            return 0;
+        double mx = miterX[i], my = miterY[i];
+        double miterLengthSq = mx * mx + my * my;
+        double absD = Math.abs(d);
+        if (joinStyle == JoinStyle.MITER)
+            return miterLengthSq <= miterLimit * miterLimit ? 0 : 1;
+        // Don't bother joining corners so flat that the miter is within the tolerance
+        if (absD * (Math.sqrt(miterLengthSq) - 1) <= tolerance)
+            return 0;
+        return joinStyle == JoinStyle.ROUND ? roundJoinSegments(n0x, n0y, n1x, n1y, cross, absD, tolerance) : 1;
+    }
+
+    //// Parallel computation of very large paths
+
+    /**
+     * Paths with at least this many nodes are offset in parallel chunks.
+     * Integer.MAX_VALUE to always compute in the calling thread.
+     */
+    public void setParallelThreshold(int nodes) {
+        parallelThreshold = nodes;
+    }
+
+    private int getChunkCount() {
+        if (nodeCount < parallelThreshold)
+            return 1;
+        return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), nodeCount / MIN_CHUNK_SIZE));
+    }
+
+    /**
+     * @return the first vertex of chunk c
+     */
+    private int getChunkStart(int c, int chunks) {
+        return (int) ((long) nodeCount * c / chunks);
+    }
+
+    /**
+     * Runs the chunks on the shared pool and waits for all of them.
+     *
+     * @return the result of each chunk, or null if interrupted, in which case
+     *         the caller computes the offset itself.
+     */
+    private static int[] runChunks(List<Callable<Integer>> tasks) {
+        try {
+            List<Future<Integer>> futures = getOffsetPool().invokeAll(tasks);
+            int[] results = new int[futures.size()];
+            for (int c = 0; c < results.length; c++) {
+                results[c] = futures.get(c).get();
             }
-            prevA = A;
-            prevB = B;
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
         }
-        if (isClosedPath()) {
-            EastNorth A = add(pts[0], mul(normals[0], d));
-            EastNorth B = add(pts[1], mul(normals[0], d));
-            if (Geometry.segmentsParallel(A, B, prevA, prevB)) {
-                ppts[0] = A;
-            } else {
-                ppts[0] = Geometry.getLineLineIntersection(A, B, prevA, prevB);
+    }
+
+    private static synchronized ExecutorService getOffsetPool() {
+        if (offsetPool == null) {
+            offsetPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private int count;
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "parallel-way-offset-chunk-" + ++count);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return offsetPool;
+    }
+
+    /**
+     * @return the number of segments needed for an arc between the normals
+     *         deviating at most 'tolerance' from a circle with the given radius
+     */
+    private int roundJoinSegments(double n0x, double n0y, double n1x, double n1y, double cross, double radius,
+            double tolerance) {
+        double angle = Math.atan2(Math.abs(cross), n0x * n1x + n0y * n1y);
+        int segments = 1;
+        if (tolerance < radius) {
+            // A chord spanning the angle a deviates radius * (1 - cos(a / 2)) from the arc
+            double maxAngle = 2 * Math.acos(1 - tolerance / radius);
+            segments = (int) Math.ceil(angle / maxAngle);
+        }
+        return Math.max(1, Math.min(segments, maxJoinNodes - 1));
+    }
+
+    /**
+     * Writes the segmentCount + 1 positions of a join around the vertex (px, py),
+     * rotating the offset from normal 0 to normal 1.
+     *
+     * @return the index after the last position written
+     */
+    private static int addJoin(double px, double py, double d, double n0x, double n0y, double n1x, double n1y,
+            double cross, int segmentCount, double[] outX, double[] outY, int j) {
+        outX[j] = px + d * n0x;
+        outY[j] = py + d * n0y;
+        j++;
+        if (segmentCount > 1) {
+            double step = Math.atan2(Math.abs(cross), n0x * n1x + n0y * n1y) / segmentCount;
+            double cos = Math.cos(step);
+            double sin = cross < 0 ? -Math.sin(step) : Math.sin(step);
+            double nx = n0x, ny = n0y;
+            for (int k = 1; k < segmentCount; k++) {
+                double t = nx * cos - ny * sin;
+                ny = nx * sin + ny * cos;
+                nx = t;
+                outX[j] = px + d * nx;
+                outY[j] = py + d * ny;
+                j++;
             }
-            ppts[nodeCount - 1] = ppts[0];
-        } else {
-            ppts[0] = add(pts[0], mul(normals[0], d));
-            ppts[nodeCount - 1] = add(pts[nodeCount - 1], mul(normals[nodeCount - 2], d));
         }
+        outX[j] = px + d * n1x;
+        outY[j] = py + d * n1y;
+        return j + 1;
+    }
+
+    /**
+     * Collapses the loops of an offset computed by computeOffset.
+     *
+     * @param trimmer holds the scratch buffers, so each thread needs its own
+     * @param count the number of positions, as returned by computeOffset
+     * @param source the source vertices from computeOffset, from index 'start'
+     */
+    public void trimSelfIntersections(SelfIntersectionTrimmer trimmer, double[] x, double[] y, int start, int count,
+            int[] source) {
+        trimmer.trim(x, y, start, count, isClosedPath(), ptsX, ptsY, count == nodeCount ? null : source);
+    }
+
+    //// Join styles
+
+    public void setJoinStyle(JoinStyle style) {
+        joinStyle = style;
+    }
+
+    /**
+     * Miter joins longer than limit times the offset are beveled. Only used by the miter join style.
+     */
+    public void setMiterLimit(double limit) {
+        miterLimit = limit;
+    }
+
+    /**
+     * How far round joins may deviate from a true arc, in EastNorth units.
+     * Flat corners are left as miters if the miter is within this distance.
+     *
+     * Can be changed while other threads compute offsets.
+     */
+    public void setArcTolerance(double tolerance) {
+        arcTolerance = tolerance;
+        if (preview != null && preview != this) {
+            preview.arcTolerance = tolerance;
+        }
+    }
+
+    /**
+     * The most nodes a round join may be made of. At least 2.
+     */
+    public void setMaxJoinNodes(int max) {
+        maxJoinNodes = Math.max(2, max);
+    }
+
+    /**
+     * Miter joins are only beveled where the miter exceeds the limit, which doesn't
+     * depend on the offset. So paths without such corners use the plain miter loop.
+     */
+    private boolean hasJoins() {
+        return joinStyle != JoinStyle.MITER || maxMiterLengthSq > miterLimit * miterLimit;
+    }
+
+    /**
+     * @return the most positions computeOffset can write with the current join settings
+     */
+    public int getMaxOutputCount() {
+        if (!hasJoins())
+            return nodeCount;
+        int corners = isClosedPath() ? nodeCount - 1 : nodeCount - 2;
+        int nodesPerJoin = joinStyle == JoinStyle.ROUND ? maxJoinNodes : 2;
+        return nodeCount + Math.max(0, corners) * (nodesPerJoin - 1);
+    }
+
+    //// Previews
+
+    /**
+     * A decimated copy of the path, to show the offset while dragging without
+     * computing and drawing nodes which would fall on the same pixel anyway.
+     *
+     * The vertices deviating less than 'tolerance' from the simplified path
+     * are left out. Its offsets are within about 'tolerance' of the offsets of
+     * this path, as long as the offset is small compared to the radius of the
+     * curves the left out vertices were on. The miters of sharp corners
+     * magnify the difference for larger offsets. Closed paths keep at least
+     * three corners. It gets the current settings of this path, and follows
+     * later changes of the arc tolerance. Can't be committed.
+     *
+     * @param tolerance in EastNorth units, typically a fraction of a pixel
+     * @return the copy, or this path if no vertex can be left out
+     */
+    public ParallelWays getPreview(double tolerance) {
+        if (preview == null || previewTolerance != tolerance) {
+            boolean[] keep = new boolean[nodeCount];
+            if (closed) {
+                // A ring smaller than the tolerance would collapse onto its first vertex
+                keep[nodeCount / 3] = true;
+                keep[2 * nodeCount / 3] = true;
+            }
+            int count = PathSimplifier.simplify(ptsX, ptsY, 0, nodeCount, tolerance, keep);
+            preview = count < nodeCount ? new ParallelWays(this, keep, count) : this;
+            previewTolerance = tolerance;
+        }
+        if (preview == this)
+            return this;
+        preview.setMetricOffsets(metricOffsets);
+        preview.joinStyle = joinStyle;
+        preview.miterLimit = miterLimit;
+        preview.arcTolerance = arcTolerance;
+        preview.maxJoinNodes = maxJoinNodes;
+        preview.parallelThreshold = parallelThreshold;
+        preview.trimSelfIntersections = trimSelfIntersections;
+        return preview;
+    }
+
+    /**
+     * Whether loops caused by offsets larger than the radius of concave
+     * corners should be removed. Coincident nodes are merged on commit.
+     */
+    public void setTrimSelfIntersections(boolean trim) {
+        trimSelfIntersections = trim;
+    }
+
+    public boolean isTrimSelfIntersections() {
+        return trimSelfIntersections;
+    }
+
+    /**
+     * Nodes of the created ways deviating less than 'metres' from the
+     * simplified way are left out on commit. The nodes joining the ways are
+     * always kept, as are tagged nodes when copying tags. 0 disables it.
+     */
+    public void setSimplifyTolerance(double metres) {
+        simplifyTolerance = metres;
+    }
+
+    private SelfIntersectionTrimmer getTrimmer() {
+        if (trimmer == null) {
+            trimmer = new SelfIntersectionTrimmer();
+        }
+        return trimmer;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public double getPointX(int i) {
+        return ptsX[i];
+    }
 
+    public double getPointY(int i) {
+        return ptsY[i];
+    }
+
+    /**
+     * Finds the segment of the source path closest to the point (px, py).
+     * Segment i runs from point i to point i + 1.
+     *
+     * The first and last segments of an open path are treated as extending
+     * infinitely, so the offset keeps following the cursor beyond the ends.
+     *
+     * @param closest receives the closest point on the segment, {x, y}
+     * @return the index of the closest segment
+     */
+    public int closestSegment(double px, double py, double[] closest) {
+        if (segmentIndex == null) {
+            int segCount = nodeCount - 1;
+            segmentIndex = new SegmentIndex(ptsX, ptsY, Arrays.copyOfRange(ptsX, 1, nodeCount), Arrays.copyOfRange(
+                    ptsY, 1, nodeCount), segCount);
+        }
+        int i = segmentIndex.nearest(px, py, Double.POSITIVE_INFINITY);
+        double dx = ptsX[i + 1] - ptsX[i], dy = ptsY[i + 1] - ptsY[i];
+        double lenSq = dx * dx + dy * dy;
+        double t = lenSq == 0 ? 0 : ((px - ptsX[i]) * dx + (py - ptsY[i]) * dy) / lenSq;
+        boolean open = !isClosedPath();
+        if (t < 0 && !(open && i == 0)) {
+            t = 0;
+        } else if (t > 1 && !(open && i == nodeCount - 2)) {
+            t = 1;
+        }
+        closest[0] = ptsX[i] + t * dx;
+        closest[1] = ptsY[i] + t * dy;
+        return i;
+    }
+
+    /**
+     * @return bounding box of the source path in EastNorth, {minX, minY, maxX, maxY}
+     */
+    public double[] getBounds() {
+        double[] bounds = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.NEGATIVE_INFINITY };
         for (int i = 0; i < nodeCount; i++) {
-            sortedNodes.get(i).setEastNorth(ppts[i]);
+            bounds[0] = Math.min(bounds[0], ptsX[i]);
+            bounds[1] = Math.min(bounds[1], ptsY[i]);
+            bounds[2] = Math.max(bounds[2], ptsX[i]);
+            bounds[3] = Math.max(bounds[3], ptsY[i]);
         }
+        return bounds;
     }
 
-    public void commit() {
-        SequenceCommand undoCommand = new SequenceCommand("Make parallel way(s)", makeAddWayAndNodesCommandList());
-        Main.main.undoRedo.add(undoCommand);
+    /**
+     * Adds a copy of the way(s) for each offset to the dataset, as a single undo step.
+     *
+     * @return all the created ways
+     */
+    public List<Way> commit(double... offsets) {
+        long startTime = DragMetrics.start();
+        List<Way> createdWays = makeWays(offsets);
+        Main.main.undoRedo.add(new AddWaysCommand(Main.main.getEditLayer(), "Make parallel way(s)", createdWays));
+        DragMetrics.record(DragMetrics.Step.COMMIT, startTime, nodeCount * offsets.length);
+        return createdWays;
     }
 
-    private List<Command> makeAddWayAndNodesCommandList() {
-        ArrayList<Command> commands = new ArrayList<Command>(sortedNodes.size() + ways.size());
-        for (int i = 0; i < sortedNodes.size() - 1; i++) {
-            commands.add(new AddCommand(sortedNodes.get(i)));
+    /**
+     * Makes a copy of the way(s) for each offset, to be added with an AddWaysCommand.
+     *
+     * This is where the nodes and ways are created, from the precomputed path.
+     *
+     * Doesn't touch the dataset, so different ParallelWays can do this in parallel.
+     *
+     * @return the created ways. Their nodes are new too.
+     */
+    public List<Way> makeWays(double[] offsets) {
+        ensureScratchCapacity();
+
+        //// Look up the tags once for all the copies
+        List<Map<String, String>> wayKeys = wayKeysSnapshot;
+        List<Map<String, String>> nodeKeys = nodeKeysSnapshot;
+        if (copyTags && wayKeys == null) {
+            wayKeys = getWayKeys();
+            nodeKeys = getNodeKeys();
         }
-        if (!isClosedPath()) {
-            commands.add(new AddCommand(sortedNodes.get(sortedNodes.size() - 1)));
+
+        // Simplification is decided from the offset arrays, so dropped nodes are never created
+        boolean[] fixed = null;
+        if (simplifyTolerance > 0) {
+            fixed = getFixedNodes();
+            if (metreScale == null) {
+                // The tolerance is converted with the scale at each vertex, like metric offsets
+                computeMetreScale();
+            }
         }
-        for (Way w : ways) {
-            commands.add(new AddCommand(w));
+
+        List<Way> createdWays = new ArrayList<Way>(offsets.length * pathWays.length);
+        for (int k = 0; k < offsets.length; k++) {
+            int count = computeOffset(offsets[k], offsetX, offsetY, 0, offsetSource);
+            if (trimSelfIntersections) {
+                trimSelfIntersections(getTrimmer(), offsetX, offsetY, 0, count, offsetSource);
+            }
+            boolean[] keep = null;
+            if (fixed != null) {
+                keep = new boolean[count];
+                double[] scale = new double[count];
+                for (int j = 0; j < count; j++) {
+                    keep[j] = fixed[offsetSource[j]] && (j == 0 || offsetSource[j - 1] != offsetSource[j]);
+                    scale[j] = metreScale[offsetSource[j]];
+                }
+                PathSimplifier.simplify(offsetX, offsetY, 0, count, simplifyTolerance, scale, keep);
+            }
+            List<Way> copy = makeCopy(count, keep, wayKeys, nodeKeys);
+            if (trimSelfIntersections) {
+                removeCoincidentNodes(copy);
+            }
+            createdWays.addAll(copy);
+        }
+        return createdWays;
+    }
+
+    /**
+     * Reads the tags to copy now rather than in makeWays. Together with the
+     * constructor, this is all that reads the source primitives, so makeWays
+     * can then run on another thread while the dataset is edited.
+     */
+    public void snapshotTags() {
+        if (copyTags) {
+            wayKeysSnapshot = getWayKeys();
+            nodeKeysSnapshot = getNodeKeys();
         }
-        return commands;
     }
 
-    static private Node copyNode(Node source, boolean copyTags) {
-        if (copyTags)
-            return new Node(source, true);
-        else {
-            Node n = new Node();
-            n.setCoor(source.getCoor());
-            return n;
+    private List<Map<String, String>> getWayKeys() {
+        List<Map<String, String>> keys = new ArrayList<Map<String, String>>(pathWays.length);
+        for (Way w : pathWays) {
+            keys.add(w.getKeys());
         }
+        return keys;
     }
 
-    // We need either a dedicated vector type, or operations such as these
-    // added to EastNorth...
-    static private EastNorth mul(EastNorth en, double f) {
-        return new EastNorth(en.getX() * f, en.getY() * f);
+    private List<Map<String, String>> getNodeKeys() {
+        List<Map<String, String>> keys = new ArrayList<Map<String, String>>(taggedNodes.length);
+        for (Node n : taggedNodes) {
+            keys.add(n.getKeys());
+        }
+        return keys;
     }
 
-    static private EastNorth add(EastNorth a, EastNorth b) {
-        return new EastNorth(a.east() + b.east(), a.north() + b.north());
+    /**
+     * Makes a command moving existing nodes onto the path offset by d, e.g.
+     * to adjust a way previously made parallel to this path. No primitives
+     * are created, so the ways keep their ids and history.
+     *
+     * Only supported with plain miter joins, since other joins change the
+     * number of positions.
+     *
+     * @param nodes the node to move to each vertex of the path. Of size
+     *            getNodeCount(). For closed paths the last node is the first.
+     */
+    public Command makeMoveCommand(List<Node> nodes, double d) {
+        if (nodes.size() != nodeCount)
+            throw new IllegalArgumentException("Expected " + nodeCount + " nodes, got " + nodes.size());
+        ensureScratchCapacity();
+        int count = computeOffset(d, offsetX, offsetY, 0, offsetSource);
+        if (count != nodeCount)
+            throw new IllegalStateException("Nodes can only be moved with plain miter joins");
+        if (trimSelfIntersections) {
+            trimSelfIntersections(getTrimmer(), offsetX, offsetY, 0, count, offsetSource);
+        }
+        return new MoveNodesCommand(closed ? nodes.subList(0, nodeCount - 1) : nodes, offsetX, offsetY);
+    }
+
+    /**
+     * Makes ways from the offset in the scratch buffers.
+     *
+     * The first position of each source vertex gets the tags of its source
+     * node, the other positions of a join become untagged nodes. Each way gets
+     * the positions from the first position of its first vertex to the first
+     * position of its last vertex, so a join at a vertex shared by two ways
+     * belongs to the second way.
+     *
+     * @param keep which positions to make nodes of, null for all
+     * @param wayKeys tags of each way, null to not copy tags
+     * @param nodeKeys tags of each tagged node, null to not copy tags
+     */
+    private List<Way> makeCopy(int count, boolean[] keep, List<Map<String, String>> wayKeys,
+            List<Map<String, String>> nodeKeys) {
+        Node[] nodes = new Node[count];
+        int[] firstPosition = new int[nodeCount];
+        int tagged = 0; // The source vertices only increase, so the tagged vertices can be walked alongside
+        for (int j = 0; j < count; j++) {
+            int i = offsetSource[j];
+            boolean first = j == 0 || offsetSource[j - 1] != i;
+            if (first) {
+                firstPosition[i] = j;
+            }
+            if (keep != null && !keep[j])
+                continue;
+            Node n;
+            if (j == count - 1 && closed) {
+                n = nodes[0];
+            } else {
+                n = new Node(new EastNorth(offsetX[j], offsetY[j]));
+                if (nodeKeys != null && first) {
+                    while (tagged < taggedVertices.length && taggedVertices[tagged] < i) {
+                        tagged++;
+                    }
+                    if (tagged < taggedVertices.length && taggedVertices[tagged] == i) {
+                        n.setKeys(nodeKeys.get(tagged));
+                    }
+                }
+            }
+            nodes[j] = n;
+        }
+
+        List<Way> result = new ArrayList<Way>(pathWays.length);
+        for (int w = 0; w < pathWays.length; w++) {
+            int from = firstPosition[wayFirstVertex[w]];
+            int to = w + 1 < pathWays.length ? firstPosition[wayFirstVertex[w + 1]] : count - 1;
+            List<Node> wayNodes = new ArrayList<Node>(to - from + 1);
+            for (int j = from; j <= to; j++) {
+                if (nodes[j] != null) {
+                    wayNodes.add(nodes[j]);
+                }
+            }
+            if (wayReversed[w]) {
+                Collections.reverse(wayNodes);
+            }
+            Way way = new Way();
+            way.setNodes(wayNodes);
+            if (wayKeys != null) {
+                way.setKeys(wayKeys.get(w));
+            }
+            result.add(way);
+        }
+        return result;
+    }
+
+    /**
+     * @return the nodes simplification must keep: the nodes joining the ways,
+     *         and the tagged nodes if the tags are copied
+     */
+    private boolean[] getFixedNodes() {
+        boolean[] fixed = new boolean[nodeCount];
+        for (int i : taggedVertices) {
+            fixed[i] = true;
+        }
+        for (int w = 0; w < pathWays.length; w++) {
+            fixed[wayFirstVertex[w]] = true;
+        }
+        fixed[nodeCount - 1] = true;
+        return fixed;
+    }
+
+    /**
+     * Removes nodes at the same position as the previous node of the way.
+     * The first and last node of the ways are always kept.
+     */
+    private static void removeCoincidentNodes(List<Way> ways) {
+        for (Way w : ways) {
+            List<Node> nodes = w.getNodes();
+            List<Node> kept = new ArrayList<Node>(nodes.size());
+            kept.add(nodes.get(0));
+            for (int i = 1; i < nodes.size(); i++) {
+                Node n = nodes.get(i);
+                EastNorth prev = kept.get(kept.size() - 1).getEastNorth();
+                EastNorth en = n.getEastNorth();
+                if (en.getX() != prev.getX() || en.getY() != prev.getY()) {
+                    kept.add(n);
+                } else if (i == nodes.size() - 1) {
+                    if (kept.size() > 1) {
+                        kept.set(kept.size() - 1, n);
+                    } else {
+                        kept.add(n);
+                    }
+                }
+            }
+            if (kept.size() != nodes.size()) {
+                w.setNodes(kept);
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,292 @@
+/*
+ * Encoding: UTF-8
+ * Licence:  GPL v2 or later
+ * Author:   Ole Jørgen Brønner <olejorgen@yahoo.no>, 2011
+ */
+
+package org.openstreetmap.josm.plugins.parallelway;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataSetListener;
+import org.openstreetmap.josm.data.osm.event.NodeMovedEvent;
+import org.openstreetmap.josm.data.osm.event.PrimitivesAddedEvent;
+import org.openstreetmap.josm.data.osm.event.PrimitivesRemovedEvent;
+import org.openstreetmap.josm.data.osm.event.RelationMembersChangedEvent;
+import org.openstreetmap.josm.data.osm.event.TagsChangedEvent;
+import org.openstreetmap.josm.data.osm.event.WayNodesChangedEvent;
+
+/**
+ * Keeps the ParallelWays of the most recently dragged selections, so
+ * dragging the same ways again doesn't have to rebuild the path.
+ *
+ * ParallelWays only holds the precomputed path until it's committed, so an
+ * instance can be reused for any number of drags. Entries are dropped when
+ * the ways, their nodes or their tags change, which we learn as a dataset
+ * listener, or when the projection changes. The least recently used entry is
+ * dropped when the cache is full.
+ *
+ * Update batches of more than about 1000 events (like committing or undoing
+ * a large copy) arrive without their events. Instead of dropping everything,
+ * each entry then compares a snapshot of its ways' nodes, their positions and
+ * which of them are tagged with the dataset the next time it's asked for.
+ */
+class ParallelWaysCache implements DataSetListener {
+    private static class Key {
+        final List<Way> ways;
+        final Way refWay;
+        final boolean copyTags;
+        // The section of the ways, null for all of them
+        final List<PathBuilder.Span> path;
+
+        Key(List<Way> ways, Way refWay, boolean copyTags, List<PathBuilder.Span> path) {
+            this.ways = ways;
+            this.refWay = refWay;
+            this.copyTags = copyTags;
+            this.path = path;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return refWay == other.refWay && copyTags == other.copyTags && ways.equals(other.ways)
+                    && (path == null ? other.path == null : path.equals(other.path));
+        }
+
+        @Override
+        public int hashCode() {
+            return ways.hashCode() * 31 + (copyTags ? 1 : 0);
+        }
+    }
+
+    private static class CachedPath {
+        final ParallelWays pWays;
+        final Object projection;
+        // The ways of the key, for invalidating without a linear search per changed way
+        final Set<Way> ways;
+        // The nodes of each way, their positions and whether they're tagged, when the entry was made
+        final Way[] snapshotWays;
+        final Node[][] nodes;
+        final double[][] nodeX;
+        final double[][] nodeY;
+        final boolean[][] tagged;
+        // Set when changes may have been missed, so the snapshot must be checked before use
+        boolean unverified;
+
+        CachedPath(ParallelWays pWays, Object projection, List<Way> ways) {
+            this.pWays = pWays;
+            this.projection = projection;
+            this.ways = new HashSet<Way>(ways);
+            snapshotWays = this.ways.toArray(new Way[this.ways.size()]);
+            nodes = new Node[snapshotWays.length][];
+            nodeX = new double[snapshotWays.length][];
+            nodeY = new double[snapshotWays.length][];
+            tagged = new boolean[snapshotWays.length][];
+            for (int w = 0; w < snapshotWays.length; w++) {
+                Way way = snapshotWays[w];
+                int n = way.getNodesCount();
+                nodes[w] = new Node[n];
+                nodeX[w] = new double[n];
+                nodeY[w] = new double[n];
+                tagged[w] = new boolean[n];
+                for (int i = 0; i < n; i++) {
+                    Node node = way.getNode(i);
+                    EastNorth en = node.getEastNorth();
+                    nodes[w][i] = node;
+                    nodeX[w][i] = en.getX();
+                    nodeY[w][i] = en.getY();
+                    tagged[w][i] = node.hasKeys();
+                }
+            }
+        }
+
+        /**
+         * @return whether the ways still have the nodes, positions and tagged nodes of the snapshot
+         */
+        boolean matchesSnapshot() {
+            for (int w = 0; w < snapshotWays.length; w++) {
+                Way way = snapshotWays[w];
+                int n = nodes[w].length;
+                if (!way.isUsable() || way.getNodesCount() != n)
+                    return false;
+                for (int i = 0; i < n; i++) {
+                    Node node = way.getNode(i);
+                    if (node != nodes[w][i] || node.hasKeys() != tagged[w][i])
+                        return false;
+                    EastNorth en = node.getEastNorth();
+                    if (en == null || en.getX() != nodeX[w][i] || en.getY() != nodeY[w][i])
+                        return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Map<Key, CachedPath> entries;
+
+    public ParallelWaysCache(final int capacity) {
+        entries = new LinkedHashMap<Key, CachedPath>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedPath> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Gets the ParallelWays of the ways, building it if it isn't cached.
+     * The arguments are the same as for the ParallelWays constructor.
+     *
+     * @throws IllegalArgumentException if the ways don't form a path
+     */
+    public synchronized ParallelWays get(Collection<Way> sourceWays, boolean copyTags, int refWayIndex) {
+        List<Way> ways = new ArrayList<Way>(sourceWays);
+        Way refWay = refWayIndex >= 0 && refWayIndex < ways.size() ? ways.get(refWayIndex) : null;
+        Key key = new Key(ways, refWay, copyTags, null);
+        CachedPath entry = getCurrent(key);
+        if (entry != null)
+            return entry.pWays;
+        ParallelWays pWays = new ParallelWays(ways, copyTags, refWayIndex);
+        entries.put(key, new CachedPath(pWays, Main.proj, ways));
+        return pWays;
+    }
+
+    /**
+     * Gets the ParallelWays of a section of ways, as made by PathBuilder.section.
+     */
+    public synchronized ParallelWays get(List<PathBuilder.Span> path, boolean copyTags) {
+        List<Way> ways = new ArrayList<Way>(path.size());
+        for (PathBuilder.Span span : path) {
+            ways.add(span.way);
+        }
+        Key key = new Key(ways, null, copyTags, new ArrayList<PathBuilder.Span>(path));
+        CachedPath entry = getCurrent(key);
+        if (entry != null)
+            return entry.pWays;
+        ParallelWays pWays = new ParallelWays(path, copyTags);
+        entries.put(key, new CachedPath(pWays, Main.proj, ways));
+        return pWays;
+    }
+
+    /**
+     * @return the entry of the key, if it's still valid
+     */
+    private CachedPath getCurrent(Key key) {
+        CachedPath entry = entries.get(key);
+        if (entry == null || entry.projection != Main.proj)
+            return null;
+        if (entry.unverified) {
+            if (!entry.matchesSnapshot()) {
+                entries.remove(key);
+                return null;
+            }
+            entry.unverified = false;
+        }
+        return entry;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Drops the entries using any of the primitives, or the ways of any of the nodes
+     */
+    private synchronized void invalidate(List<? extends OsmPrimitive> primitives) {
+        if (entries.isEmpty())
+            return;
+        for (OsmPrimitive p : primitives) {
+            if (entries.isEmpty())
+                return;
+            if (p instanceof Way) {
+                invalidate((Way) p);
+            } else if (p instanceof Node) {
+                for (OsmPrimitive referrer : p.getReferrers()) {
+                    if (referrer instanceof Way) {
+                        invalidate((Way) referrer);
+                    }
+                }
+            }
+        }
+    }
+
+    private void invalidate(Way way) {
+        for (Iterator<CachedPath> it = entries.values().iterator(); it.hasNext();) {
+            if (it.next().ways.contains(way)) {
+                it.remove();
+            }
+        }
+    }
+
+    private synchronized void markUnverified() {
+        for (CachedPath entry : entries.values()) {
+            entry.unverified = true;
+        }
+    }
+
+    //// DataSetListener
+
+    @Override
+    public void primitivesAdded(PrimitivesAddedEvent event) {
+        // New primitives can't be part of a cached path
+    }
+
+    @Override
+    public void primitivesRemoved(PrimitivesRemovedEvent event) {
+        invalidate(event.getPrimitives());
+    }
+
+    @Override
+    public void tagsChanged(TagsChangedEvent event) {
+        invalidate(event.getPrimitives());
+    }
+
+    @Override
+    public void nodeMoved(NodeMovedEvent event) {
+        invalidate(event.getPrimitives());
+    }
+
+    @Override
+    public void wayNodesChanged(WayNodesChangedEvent event) {
+        invalidate(event.getPrimitives());
+    }
+
+    @Override
+    public void relationMembersChanged(RelationMembersChangedEvent event) {
+    }
+
+    @Override
+    public void otherDatasetChange(AbstractDatasetChangedEvent event) {
+    }
+
+    @Override
+    public void dataChanged(DataChangedEvent event) {
+        // Large update batches, like our own commands, arrive as one event holding the events of the batch.
+        // Without them (the batch overflowed, or the whole dataset changed) anything may have changed,
+        // so the entries are checked against their snapshots when next used.
+        List<AbstractDatasetChangedEvent> events = event.getEvents();
+        if (events == null) {
+            markUnverified();
+            return;
+        }
+        for (AbstractDatasetChangedEvent e : events) {
+            e.fire(this);
+        }
+    }
+}
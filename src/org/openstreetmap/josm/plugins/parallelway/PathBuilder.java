@@ -0,0 +1,439 @@
+/*
+ * Encoding: UTF-8
+ * Licence:  GPL v2 or later
+ * Author:   Ole Jørgen Brønner <olejorgen@yahoo.no>, 2011
+ */
+
+package org.openstreetmap.josm.plugins.parallelway;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.tools.Predicate;
+
+/**
+ * Orders a collection of ways into a single path.
+ *
+ * The ways are chained by their end nodes only, so interior nodes may be
+ * shared freely (the path may cross or touch itself). Runs in time linear in
+ * the number of ways; only the error reporting looks at interior nodes.
+ */
+public class PathBuilder {
+    /**
+     * A way, or the nodes from..to of a way, as part of a path. If reversed,
+     * the path runs from the last to the first of these nodes.
+     */
+    public static class Span {
+        public final Way way;
+        public final boolean reversed;
+        // Node indices in the way, from < to
+        public final int from;
+        public final int to;
+
+        public Span(Way way, boolean reversed) {
+            this(way, reversed, 0, way.getNodesCount() - 1);
+        }
+
+        public Span(Way way, boolean reversed, int from, int to) {
+            this.way = way;
+            this.reversed = reversed;
+            this.from = from;
+            this.to = to;
+        }
+
+        public Node startNode() {
+            return way.getNode(reversed ? to : from);
+        }
+
+        public Node endNode() {
+            return way.getNode(reversed ? from : to);
+        }
+
+        public int getNodesCount() {
+            return to - from + 1;
+        }
+
+        /**
+         * @return the i'th node in path order
+         */
+        public Node getNode(int i) {
+            return way.getNode(reversed ? to - i : from + i);
+        }
+
+        public Span reverse() {
+            return new Span(way, !reversed, from, to);
+        }
+
+        /**
+         * @return the nodes first..last, in path order, of this span
+         */
+        public Span subSpan(int first, int last) {
+            return reversed ? new Span(way, true, to - last, to - first) : new Span(way, false, from + first, from
+                    + last);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Span))
+                return false;
+            Span other = (Span) obj;
+            return way == other.way && reversed == other.reversed && from == other.from && to == other.to;
+        }
+
+        @Override
+        public int hashCode() {
+            return (way.hashCode() * 31 + from) * 31 + to;
+        }
+    }
+
+    /**
+     * @return the ways in path order. The path starts at a dead end, or if the
+     *         ways form a ring, at the first node of the first way.
+     * @throws NoSpanningPathException if the ways branch or aren't connected
+     */
+    public static List<Span> build(Collection<Way> ways) {
+        if (ways.isEmpty())
+            throw new NoSpanningPathException("No ways", null);
+
+        //// Index the ways by their end nodes. More than two ways ending at a node is a branch
+        HashMap<Node, Way[]> ends = new HashMap<Node, Way[]>(ways.size() * 2);
+        for (Way w : ways) {
+            if (w.getNodesCount() < 2)
+                throw new NoSpanningPathException("Way with less than two nodes", w.firstNode());
+            addEnd(ends, w.firstNode(), w);
+            addEnd(ends, w.lastNode(), w);
+        }
+
+        //// Start at a dead end if there is one
+        Way first = ways.iterator().next();
+        Node start = first.firstNode();
+        for (Way w : ways) {
+            if (ends.get(w.firstNode())[1] == null) {
+                start = w.firstNode();
+                break;
+            }
+            if (ends.get(w.lastNode())[1] == null) {
+                start = w.lastNode();
+                break;
+            }
+        }
+
+        //// Walk the chain
+        List<Span> path = new ArrayList<Span>(ways.size());
+        Node node = start;
+        Way prev = null;
+        while (true) {
+            Way[] atNode = ends.get(node);
+            Way next = atNode[0] != prev ? atNode[0] : atNode[1];
+            if (next == null || path.size() == ways.size()) {
+                break;
+            }
+            Span span = new Span(next, next.firstNode() != node);
+            path.add(span);
+            node = span.endNode();
+            prev = next;
+            if (node == start) {
+                break; // Ring
+            }
+        }
+
+        if (path.size() != ways.size()) {
+            Node breakNode = findBreak(ways, path, ends);
+            throw new NoSpanningPathException("Ways must have spanning path", breakNode);
+        }
+        return path;
+    }
+
+    /**
+     * Splits a collection of ways into the longest possible branchless chains.
+     * A chain ends where the number of ways ending at a node isn't two.
+     *
+     * Each chain is a valid input for build(). Runs in linear time.
+     */
+    public static List<List<Way>> splitIntoChains(Collection<Way> ways) {
+        HashMap<Node, List<Way>> ends = new HashMap<Node, List<Way>>(ways.size() * 2);
+        for (Way w : ways) {
+            if (w.getNodesCount() < 2) {
+                continue;
+            }
+            addChainEnd(ends, w.firstNode(), w);
+            addChainEnd(ends, w.lastNode(), w);
+        }
+
+        List<List<Way>> chains = new ArrayList<List<Way>>();
+        HashSet<Way> visited = new HashSet<Way>(ways.size());
+        for (Way w : ways) {
+            if (w.getNodesCount() < 2 || !visited.add(w)) {
+                continue;
+            }
+            LinkedList<Way> chain = new LinkedList<Way>();
+            chain.add(w);
+            if (!w.isClosed()) {
+                extendChain(ends, visited, chain, w, w.lastNode(), false);
+                extendChain(ends, visited, chain, w, w.firstNode(), true);
+            }
+            chains.add(new ArrayList<Way>(chain));
+        }
+        return chains;
+    }
+
+    private static void extendChain(HashMap<Node, List<Way>> ends, HashSet<Way> visited, LinkedList<Way> chain,
+            Way w, Node node, boolean atFront) {
+        while (true) {
+            List<Way> atNode = ends.get(node);
+            if (atNode.size() != 2)
+                return;
+            Way next = atNode.get(0) == w ? atNode.get(1) : atNode.get(0);
+            if (next == w || !visited.add(next))
+                return; // Closed way or back at the start of a ring
+            if (atFront) {
+                chain.addFirst(next);
+            } else {
+                chain.addLast(next);
+            }
+            node = next.firstNode() == node ? next.lastNode() : next.firstNode();
+            w = next;
+        }
+    }
+
+    /**
+     * Finds the chain through a way that splitIntoChains would give for all
+     * the accepted ways, but only looks at the ways along the chain.
+     *
+     * @param accept the ways which may be part of the chain. Must accept way.
+     */
+    public static List<Way> chainThrough(Way way, Predicate<OsmPrimitive> accept) {
+        LinkedList<Way> chain = new LinkedList<Way>();
+        chain.add(way);
+        if (way.getNodesCount() >= 2 && !way.isClosed()) {
+            HashSet<Way> visited = new HashSet<Way>();
+            visited.add(way);
+            walkChain(accept, visited, chain, way, way.lastNode(), false);
+            walkChain(accept, visited, chain, way, way.firstNode(), true);
+        }
+        return new ArrayList<Way>(chain);
+    }
+
+    private static void walkChain(Predicate<OsmPrimitive> accept, HashSet<Way> visited, LinkedList<Way> chain,
+            Way w, Node node, boolean atFront) {
+        while (true) {
+            // The number of accepted way ends at the node, like the lists of splitIntoChains
+            int ends = 0;
+            Way next = null;
+            for (OsmPrimitive referrer : node.getReferrers()) {
+                if (!(referrer instanceof Way) || !accept.evaluate(referrer)) {
+                    continue;
+                }
+                Way other = (Way) referrer;
+                if (other.getNodesCount() < 2) {
+                    continue;
+                }
+                int otherEnds = (other.firstNode() == node ? 1 : 0) + (other.lastNode() == node ? 1 : 0);
+                ends += otherEnds;
+                if (other != w && otherEnds > 0) {
+                    next = other;
+                }
+            }
+            if (ends != 2 || next == null || !visited.add(next))
+                return; // A branch, a dead end, or back at the start of a ring
+            if (atFront) {
+                chain.addFirst(next);
+            } else {
+                chain.addLast(next);
+            }
+            node = next.firstNode() == node ? next.lastNode() : next.firstNode();
+            w = next;
+        }
+    }
+
+    private static void addChainEnd(HashMap<Node, List<Way>> ends, Node n, Way w) {
+        List<Way> atNode = ends.get(n);
+        if (atNode == null) {
+            atNode = new ArrayList<Way>(2);
+            ends.put(n, atNode);
+        }
+        atNode.add(w);
+    }
+
+    /**
+     * Reverses a path (in place) and all its spans.
+     */
+    public static void reverse(List<Span> path) {
+        Collections.reverse(path);
+        for (int i = 0; i < path.size(); i++) {
+            path.set(i, path.get(i).reverse());
+        }
+    }
+
+    /**
+     * Reverses the path (in place) if needed to make it run in the direction of refWay.
+     */
+    public static void orient(List<Span> path, Way refWay) {
+        for (Span span : path) {
+            if (span.way == refWay) {
+                if (span.reversed) {
+                    reverse(path);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Cuts the path at the split nodes around a segment of the path.
+     *
+     * Walks from the segment in both directions until a split node or an end
+     * of the path, so the cost is proportional to the length of the section,
+     * not of the path. Interior nodes of the ways may be split nodes.
+     *
+     * @param path a path as returned by build(). It's oriented in the direction of refWay.
+     * @param splitNodes nodes to split the path at. Other nodes are ignored.
+     * @param refSegment the segment of refWay (from node refSegment to refSegment + 1) that must be in the section
+     * @return the section, running in the direction of refWay. The path itself
+     *         if there are no split nodes along it, or if it's a ring with a
+     *         single split node: going round from that node to itself cuts
+     *         nothing off, and would only split its way in two at the node.
+     */
+    public static List<Span> section(List<Span> path, Collection<Node> splitNodes, Way refWay, int refSegment) {
+        orient(path, refWay);
+        int refSpan = -1;
+        for (int s = 0; s < path.size(); s++) {
+            if (path.get(s).way == refWay) {
+                refSpan = s;
+                break;
+            }
+        }
+        if (refSpan < 0)
+            throw new IllegalArgumentException("The reference way isn't part of the path");
+        boolean closed = isClosed(path);
+        int last = path.size() - 1;
+        // Bounds the walks around rings without split nodes
+        int maxSteps = 0;
+        if (closed) {
+            for (Span span : path) {
+                maxSteps += span.getNodesCount() - 1;
+            }
+        }
+
+        //// Walk backwards to the start of the section
+        int startSpan = refSpan;
+        int start = refSegment - path.get(refSpan).from;
+        int crossed = 0;
+        for (int steps = 0; !splitNodes.contains(path.get(startSpan).getNode(start)); steps++) {
+            if (closed && steps == maxSteps)
+                return path;
+            if (start == 0) {
+                if (startSpan == 0 && !closed) {
+                    break;
+                }
+                startSpan = startSpan == 0 ? last : startSpan - 1;
+                start = path.get(startSpan).getNodesCount() - 1;
+                crossed++;
+            }
+            start--;
+        }
+
+        //// And forwards to the end of it
+        int endSpan = refSpan;
+        int end = refSegment + 1 - path.get(refSpan).from;
+        while (!splitNodes.contains(path.get(endSpan).getNode(end))) {
+            if (end == path.get(endSpan).getNodesCount() - 1) {
+                if (endSpan == last && !closed) {
+                    break;
+                }
+                endSpan = endSpan == last ? 0 : endSpan + 1;
+                end = 0;
+                crossed++;
+            }
+            end++;
+        }
+
+        if (closed && crossed == path.size() && startSpan == endSpan && start == end)
+            return path; // Round the ring from a single split node back to it
+
+        List<Span> section = new ArrayList<Span>(crossed + 1);
+        for (int k = 0, s = startSpan; k <= crossed; k++, s = s == last ? 0 : s + 1) {
+            Span span = path.get(s);
+            int first = k == 0 ? start : 0;
+            int lastNode = k == crossed ? end : span.getNodesCount() - 1;
+            section.add(first == 0 && lastNode == span.getNodesCount() - 1 ? span : span.subSpan(first, lastNode));
+        }
+        return section;
+    }
+
+    public static boolean isClosed(List<Span> path) {
+        return path.get(0).startNode() == path.get(path.size() - 1).endNode();
+    }
+
+    /**
+     * @return the nodes along the path. Nodes joining two ways are included
+     *         once, and a closed path ends with its first node.
+     */
+    public static List<Node> getNodes(List<Span> path) {
+        List<Node> nodes = new ArrayList<Node>();
+        for (Span span : path) {
+            int n = span.getNodesCount();
+            for (int t = nodes.isEmpty() ? 0 : 1; t < n; t++) {
+                nodes.add(span.getNode(t));
+            }
+        }
+        return nodes;
+    }
+
+    private static void addEnd(HashMap<Node, Way[]> ends, Node n, Way w) {
+        Way[] atNode = ends.get(n);
+        if (atNode == null) {
+            atNode = new Way[2];
+            ends.put(n, atNode);
+        }
+        if (atNode[0] == null) {
+            atNode[0] = w;
+        } else if (atNode[1] == null) {
+            atNode[1] = w;
+        } else
+            throw new NoSpanningPathException("The path branches", n);
+    }
+
+    /**
+     * Find the node where the walked path stops. Either an end of the path
+     * that touches an interior node of another way (a branch), or just an
+     * end of a way that isn't connected to the path.
+     */
+    private static Node findBreak(Collection<Way> ways, List<Span> path, HashMap<Node, Way[]> ends) {
+        List<Node> deadEnds = new ArrayList<Node>();
+        for (Node n : ends.keySet()) {
+            if (ends.get(n)[1] == null) {
+                deadEnds.add(n);
+            }
+        }
+        if (!deadEnds.isEmpty()) {
+            // The nodes of the ways which aren't an end of the same way, collected once
+            // since the selection may have hundreds of fragments
+            HashSet<Node> interior = new HashSet<Node>();
+            for (Way w : ways) {
+                Node first = w.firstNode(), last = w.lastNode();
+                for (int i = 1; i < w.getNodesCount() - 1; i++) {
+                    Node n = w.getNode(i);
+                    if (n != first && n != last) {
+                        interior.add(n);
+                    }
+                }
+            }
+            for (Node n : deadEnds) {
+                if (interior.contains(n))
+                    return n;
+            }
+        }
+        if (!path.isEmpty())
+            return path.get(path.size() - 1).endNode();
+        return deadEnds.isEmpty() ? null : deadEnds.get(0);
+    }
+}
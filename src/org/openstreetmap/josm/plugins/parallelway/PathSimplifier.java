@@ -0,0 +1,139 @@
+/*
+ * Encoding: UTF-8
+ * Licence:  GPL v2 or later
+ * Author:   Ole Jørgen Brønner <olejorgen@yahoo.no>, 2011
+ */
+
+package org.openstreetmap.josm.plugins.parallelway;
+
+/**
+ * Removes vertices which deviate less than a tolerance from the simplified path.
+ *
+ * Uses sleeve fitting (Zhao and Saalfeld): from the last kept vertex (the
+ * anchor) we track the range of directions a line can have while staying
+ * within the tolerance of all the vertices seen since. A vertex is kept when
+ * the next one falls outside this range, and becomes the new anchor. This
+ * needs a single pass over the path, unlike Douglas-Peucker.
+ *
+ * The range only bounds the distance to the line through the anchor. A
+ * segment therefore only ends at a vertex at least as far from the anchor as
+ * every vertex before it, so the removed vertices project onto the segment
+ * itself, and every removed vertex is within the tolerance of the simplified
+ * path.
+ */
+class PathSimplifier {
+    private PathSimplifier() {
+    }
+
+    /**
+     * Simplifies the path stored in x, y at [start, start + n).
+     *
+     * @param keep [0, n). The vertices already marked are always kept, and
+     *            split the path into parts which are simplified separately.
+     *            Receives the vertices to keep. The first and last vertex are
+     *            always kept.
+     * @return the number of kept vertices
+     */
+    public static int simplify(double[] x, double[] y, int start, int n, double tolerance, boolean[] keep) {
+        return simplify(x, y, start, n, tolerance, null, keep);
+    }
+
+    /**
+     * Same as above, with a tolerance varying along the path.
+     *
+     * @param toleranceScale [0, n), may be null. The vertices after a kept
+     *            vertex i get the tolerance 'tolerance * toleranceScale[i]'.
+     *            E.g. the scale of the projection, for a tolerance in metres.
+     */
+    public static int simplify(double[] x, double[] y, int start, int n, double tolerance, double[] toleranceScale,
+            boolean[] keep) {
+        if (n <= 2 || !(tolerance > 0)) {
+            for (int i = 0; i < n; i++) {
+                keep[i] = true;
+            }
+            return n;
+        }
+        keep[0] = true;
+        keep[n - 1] = true;
+        double baseTolerance = tolerance;
+
+        int kept = 1;
+        int anchor = 0;
+        if (toleranceScale != null) {
+            tolerance = baseTolerance * toleranceScale[0];
+        }
+        // The farthest vertex a line from the anchor can reach, where the segment can end
+        int reachable = 0;
+        // Allowed directions relative to baseAngle. Unbounded until a vertex is outside the tolerance of the anchor.
+        double baseAngle = Double.NaN;
+        double lo = Double.NEGATIVE_INFINITY;
+        double hi = Double.POSITIVE_INFINITY;
+        double maxDist = 0;
+        for (int i = 1; i < n; i++) {
+            double dx = x[start + i] - x[start + anchor];
+            double dy = y[start + i] - y[start + anchor];
+            double dist = Math.sqrt(dx * dx + dy * dy);
+
+            boolean inside;
+            double rel = 0;
+            if (dist < maxDist - tolerance) {
+                inside = false; // The path doubles back along the sleeve
+            } else if (dist <= tolerance) {
+                inside = true;
+            } else {
+                double angle = Math.atan2(dy, dx);
+                if (Double.isNaN(baseAngle)) {
+                    baseAngle = angle;
+                } else {
+                    rel = angle - baseAngle;
+                    if (rel > Math.PI) {
+                        rel -= 2 * Math.PI;
+                    } else if (rel < -Math.PI) {
+                        rel += 2 * Math.PI;
+                    }
+                }
+                inside = rel >= lo && rel <= hi;
+            }
+            if (inside && keep[i] && dist < maxDist) {
+                inside = false; // The segment can't end here, short of the vertices before
+            }
+            if (inside && keep[i]) {
+                kept++;
+                anchor = i;
+                reachable = i;
+                if (toleranceScale != null) {
+                    tolerance = baseTolerance * toleranceScale[anchor];
+                }
+                baseAngle = Double.NaN;
+                lo = Double.NEGATIVE_INFINITY;
+                hi = Double.POSITIVE_INFINITY;
+                maxDist = 0;
+                continue;
+            }
+            if (!inside) {
+                keep[reachable] = true;
+                kept++;
+                anchor = reachable;
+                if (toleranceScale != null) {
+                    tolerance = baseTolerance * toleranceScale[anchor];
+                }
+                baseAngle = Double.NaN;
+                lo = Double.NEGATIVE_INFINITY;
+                hi = Double.POSITIVE_INFINITY;
+                maxDist = 0;
+                i = reachable; // Start the new sleeve from the vertex after the new anchor
+                continue;
+            }
+            if (dist > tolerance) {
+                double halfWidth = Math.asin(tolerance / dist);
+                lo = Math.max(lo, rel - halfWidth);
+                hi = Math.min(hi, rel + halfWidth);
+                if (dist >= maxDist) {
+                    maxDist = dist;
+                    reachable = i;
+                }
+            }
+        }
+        return kept;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Encoding: UTF-8
+ * Licence:  GPL v2 or later
+ * Author:   Ole Jørgen Brønner <olejorgen@yahoo.no>, 2011
+ */
+
+package org.openstreetmap.josm.plugins.parallelway;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid index over a fixed set of line segments, for fast
+ * nearest-segment and radius queries. Build once, query many times.
+ *
+ * Each segment is registered in every cell its bounding box overlaps. The
+ * cells are stored compactly: the segments of cell c are
+ * cellItems[cellStart[c] .. cellStart[c + 1]).
+ *
+ * Queries reuse internal buffers, so an index must only be queried by one thread.
+ */
+class SegmentIndex {
+    // Aim for about this many segments per cell
+    private static final double SEGMENTS_PER_CELL = 2;
+    private static final int MAX_CELLS_PER_AXIS = 1024;
+
+    private final double[] x1, y1, x2, y2;
+    private final int count;
+
+    private final double minX, minY;
+    private final double cellSize;
+    private final int cols, rows;
+    private final int[] cellStart;
+    private final int[] cellItems;
+
+    // Avoids visiting a segment registered in several cells more than once per query
+    private final int[] visitStamp;
+    private int stamp;
+
+    /**
+     * The arrays are used directly, not copied. Segment i runs from (x1[i], y1[i]) to (x2[i], y2[i]).
+     */
+    public SegmentIndex(double[] x1, double[] y1, double[] x2, double[] y2, int count) {
+        this.x1 = x1;
+        this.y1 = y1;
+        this.x2 = x2;
+        this.y2 = y2;
+        this.count = count;
+        visitStamp = new int[count];
+
+        double bMinX = Double.POSITIVE_INFINITY, bMinY = Double.POSITIVE_INFINITY;
+        double bMaxX = Double.NEGATIVE_INFINITY, bMaxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < count; i++) {
+            bMinX = Math.min(bMinX, Math.min(x1[i], x2[i]));
+            bMinY = Math.min(bMinY, Math.min(y1[i], y2[i]));
+            bMaxX = Math.max(bMaxX, Math.max(x1[i], x2[i]));
+            bMaxY = Math.max(bMaxY, Math.max(y1[i], y2[i]));
+        }
+        if (count == 0) {
+            bMinX = bMinY = bMaxX = bMaxY = 0;
+        }
+        minX = bMinX;
+        minY = bMinY;
+        double w = bMaxX - bMinX, h = bMaxY - bMinY;
+        double size = Math.sqrt(Math.max(w * h, 1e-18) * SEGMENTS_PER_CELL / Math.max(count, 1));
+        size = Math.max(size, Math.max(w, h) / MAX_CELLS_PER_AXIS);
+        cellSize = size > 0 ? size : 1;
+        cols = Math.max(1, (int) (w / cellSize) + 1);
+        rows = Math.max(1, (int) (h / cellSize) + 1);
+
+        //// Count the segments per cell, then fill them in
+        cellStart = new int[cols * rows + 1];
+        for (int i = 0; i < count; i++) {
+            int c0 = col(Math.min(x1[i], x2[i])), c1 = col(Math.max(x1[i], x2[i]));
+            int r0 = row(Math.min(y1[i], y2[i])), r1 = row(Math.max(y1[i], y2[i]));
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++) {
+                    cellStart[r * cols + c + 1]++;
+                }
+            }
+        }
+        for (int c = 0; c < cols * rows; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        cellItems = new int[cellStart[cols * rows]];
+        int[] fill = Arrays.copyOf(cellStart, cols * rows);
+        for (int i = 0; i < count; i++) {
+            int c0 = col(Math.min(x1[i], x2[i])), c1 = col(Math.max(x1[i], x2[i]));
+            int r0 = row(Math.min(y1[i], y2[i])), r1 = row(Math.max(y1[i], y2[i]));
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++) {
+                    cellItems[fill[r * cols + c]++] = i;
+                }
+            }
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the segment closest to (px, py), or -1 if there is no segment within maxDist
+     */
+    public int nearest(double px, double py, double maxDist) {
+        nextStamp();
+        int pc = col(px), pr = row(py);
+        int best = -1;
+        double bestDistSq = maxDist * maxDist;
+        int maxRing = Math.max(cols, rows);
+        for (int ring = 0; ring <= maxRing; ring++) {
+            // Cells in this ring are at least (ring - 1) cells away
+            double ringDist = (ring - 1) * cellSize;
+            if (ring > 0 && ringDist * ringDist > bestDistSq) {
+                break;
+            }
+            for (int r = pr - ring; r <= pr + ring; r++) {
+                if (r < 0 || r >= rows) {
+                    continue;
+                }
+                boolean edgeRow = r == pr - ring || r == pr + ring;
+                for (int c = pc - ring; c <= pc + ring; c += edgeRow ? 1 : 2 * ring) {
+                    if (c < 0 || c >= cols) {
+                        continue;
+                    }
+                    int cell = r * cols + c;
+                    for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                        int i = cellItems[k];
+                        if (visitStamp[i] == stamp) {
+                            continue;
+                        }
+                        visitStamp[i] = stamp;
+                        double dSq = distanceSq(i, px, py);
+                        if (dSq < bestDistSq) {
+                            bestDistSq = dSq;
+                            best = i;
+                        }
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Finds the segments which might be within radius of (px, py)
+     *
+     * @param out receives the segment indices. Must have room for size() elements.
+     * @return the number of segments found
+     */
+    public int query(double px, double py, double radius, int[] out) {
+        nextStamp();
+        int n = 0;
+        int c0 = col(px - radius), c1 = col(px + radius);
+        int r0 = row(py - radius), r1 = row(py + radius);
+        double radiusSq = radius * radius;
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                int cell = r * cols + c;
+                for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                    int i = cellItems[k];
+                    if (visitStamp[i] != stamp) {
+                        visitStamp[i] = stamp;
+                        if (distanceSq(i, px, py) <= radiusSq) {
+                            out[n++] = i;
+                        }
+                    }
+                }
+            }
+        }
+        return n;
+    }
+
+    public double distanceSq(int i, double px, double py) {
+        double dx = x2[i] - x1[i], dy = y2[i] - y1[i];
+        double lenSq = dx * dx + dy * dy;
+        double t = lenSq == 0 ? 0 : ((px - x1[i]) * dx + (py - y1[i]) * dy) / lenSq;
+        t = Math.max(0, Math.min(1, t));
+        double ex = x1[i] + t * dx - px, ey = y1[i] + t * dy - py;
+        return ex * ex + ey * ey;
+    }
+
+    public double getX1(int i) {
+        return x1[i];
+    }
+
+    public double getY1(int i) {
+        return y1[i];
+    }
+
+    public double getX2(int i) {
+        return x2[i];
+    }
+
+    public double getY2(int i) {
+        return y2[i];
+    }
+
+    private void nextStamp() {
+        stamp++;
+        if (stamp == 0) {
+            // Wrapped around; old stamps could collide
+            Arrays.fill(visitStamp, 0);
+            stamp = 1;
+        }
+    }
+
+    private int col(double x) {
+        return Math.max(0, Math.min(cols - 1, (int) Math.floor((x - minX) / cellSize)));
+    }
+
+    private int row(double y) {
+        return Math.max(0, Math.min(rows - 1, (int) Math.floor((y - minY) / cellSize)));
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Encoding: UTF-8
+ * Licence:  GPL v2 or later
+ * Author:   Ole Jørgen Brønner <olejorgen@yahoo.no>, 2011
+ */
+
+package org.openstreetmap.josm.plugins.parallelway;
+
+import java.util.Arrays;
+
+/**
+ * Removes the loops ("swallowtails") which appear in an offset path when the
+ * offset is larger than the radius of a concave corner.
+ *
+ * A loop is a part of the path between two intersecting segments that
+ * contains at least one inverted segment, i.e. a segment pointing in the
+ * opposite direction of its source segment. The vertices of the loop are
+ * collapsed onto the intersection point. Collapsing instead of removing keeps
+ * the vertex count, so the result still maps one to one to the source path.
+ *
+ * Intersections are found with a uniform grid over the segments (laid out
+ * like SegmentIndex), so only segments sharing a cell are compared. The cells
+ * are about as large as a segment and hold a few segments each, so for paths
+ * of evenly sized segments finding the intersections is linear in the number
+ * of segments, whatever the direction of the path. All buffers are reused
+ * between calls, so an instance must only be used by one thread.
+ */
+class SelfIntersectionTrimmer {
+    // Aim for about this many segments per cell
+    private static final double SEGMENTS_PER_CELL = 2;
+
+    // Bounding boxes of the segments
+    private double[] minX = new double[0];
+    private double[] minY = new double[0];
+    private double[] maxX = new double[0];
+    private double[] maxY = new double[0];
+    //// The grid. The segments of cell c are cellItems[cellStart[c] .. cellStart[c + 1])
+    private double gridMinX;
+    private double gridMinY;
+    private double cellSize;
+    private int cols;
+    private int rows;
+    private int[] cellStart = new int[0];
+    private int[] cellFill = new int[0];
+    private int[] cellItems = new int[0];
+    // Prefix sums of inverted segments. invertedBefore[s] = number of inverted segments < s
+    private int[] invertedBefore = new int[0];
+
+    // Found intersections
+    private int intersectionCount;
+    private int[] intersectionI = new int[16];
+    private int[] intersectionJ = new int[16];
+    private double[] intersectionX = new double[16];
+    private double[] intersectionY = new double[16];
+    private long[] sortKeys = new long[16];
+
+    /**
+     * Trims the path stored in x, y at [start, start + n).
+     *
+     * @param refX x coordinates of the source path, used to determine which segments are inverted. [0, n)
+     * @param refY y coordinates of the source path. [0, n)
+     * @param refIndex the source vertex of each vertex, from index 'start'. Null if they map one to one.
+     *            Segments between vertices from the same source vertex are never inverted.
+     * @param closed whether the first and last vertex is the same
+     * @return the number of collapsed loops
+     */
+    public int trim(double[] x, double[] y, int start, int n, boolean closed, double[] refX, double[] refY,
+            int[] refIndex) {
+        int segCount = n - 1;
+        if (segCount < 3)
+            return 0;
+        ensureCapacity(segCount);
+
+        invertedBefore[0] = 0;
+        for (int s = 0; s < segCount; s++) {
+            double dx = x[start + s + 1] - x[start + s];
+            double dy = y[start + s + 1] - y[start + s];
+            int r0 = refIndex == null ? s : refIndex[start + s];
+            int r1 = refIndex == null ? s + 1 : refIndex[start + s + 1];
+            double rdx = refX[r1] - refX[r0];
+            double rdy = refY[r1] - refY[r0];
+            boolean inverted = dx * rdx + dy * rdy < 0;
+            invertedBefore[s + 1] = invertedBefore[s] + (inverted ? 1 : 0);
+        }
+        if (invertedBefore[segCount] == 0)
+            return 0; // No inverted segments, so no loops to remove
+
+        findIntersections(x, y, start, segCount, closed);
+        if (intersectionCount == 0)
+            return 0;
+        return collapseLoops(x, y, start, segCount, closed);
+    }
+
+    private void findIntersections(double[] x, double[] y, int start, int segCount, boolean closed) {
+        double bMinX = Double.POSITIVE_INFINITY, bMinY = Double.POSITIVE_INFINITY;
+        double bMaxX = Double.NEGATIVE_INFINITY, bMaxY = Double.NEGATIVE_INFINITY;
+        double extentSum = 0;
+        for (int s = 0; s < segCount; s++) {
+            double x1 = x[start + s], x2 = x[start + s + 1];
+            double y1 = y[start + s], y2 = y[start + s + 1];
+            minX[s] = Math.min(x1, x2);
+            maxX[s] = Math.max(x1, x2);
+            minY[s] = Math.min(y1, y2);
+            maxY[s] = Math.max(y1, y2);
+            bMinX = Math.min(bMinX, minX[s]);
+            bMinY = Math.min(bMinY, minY[s]);
+            bMaxX = Math.max(bMaxX, maxX[s]);
+            bMaxY = Math.max(bMaxY, maxY[s]);
+            extentSum += Math.max(maxX[s] - minX[s], maxY[s] - minY[s]);
+        }
+        buildGrid(segCount, bMinX, bMinY, bMaxX - bMinX, bMaxY - bMinY, extentSum / segCount);
+
+        //// Compare the segments sharing a cell. A pair sharing several cells
+        //// is only compared in the cell holding the lower corner of the
+        //// overlap of their bounding boxes.
+        intersectionCount = 0;
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                int cell = r * cols + c;
+                int end = cellStart[cell + 1];
+                for (int a = cellStart[cell]; a < end; a++) {
+                    int s = cellItems[a];
+                    for (int b = a + 1; b < end; b++) {
+                        int t = cellItems[b];
+                        if (Math.abs(s - t) <= 1 || closed && Math.abs(s - t) == segCount - 1) {
+                            continue; // Neighbours share a vertex
+                        }
+                        double ox = Math.max(minX[s], minX[t]);
+                        double oy = Math.max(minY[s], minY[t]);
+                        if (ox > Math.min(maxX[s], maxX[t]) || oy > Math.min(maxY[s], maxY[t])
+                                || col(ox) != c || row(oy) != r) {
+                            continue;
+                        }
+                        intersect(x, y, start, Math.min(s, t), Math.max(s, t));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers each segment in the cells its bounding box overlaps
+     *
+     * @param meanExtent the mean of the largest side of the segment bounding boxes
+     */
+    private void buildGrid(int segCount, double bMinX, double bMinY, double w, double h, double meanExtent) {
+        // Cells smaller than the segments would only register them in more cells. The last
+        // bound keeps the number of cells below about 1.5 * segCount for long, thin paths.
+        double size = Math.sqrt(Math.max(w * h, 1e-18) * SEGMENTS_PER_CELL / segCount);
+        size = Math.max(size, meanExtent);
+        size = Math.max(size, (w + h) / segCount);
+        gridMinX = bMinX;
+        gridMinY = bMinY;
+        cellSize = size > 0 ? size : 1;
+        cols = Math.max(1, (int) (w / cellSize) + 1);
+        rows = Math.max(1, (int) (h / cellSize) + 1);
+        int cellCount = cols * rows;
+        if (cellStart.length < cellCount + 1) {
+            cellStart = new int[cellCount + 1];
+            cellFill = new int[cellCount];
+        }
+
+        //// Count the segments per cell, then fill them in
+        Arrays.fill(cellStart, 0, cellCount + 1, 0);
+        for (int s = 0; s < segCount; s++) {
+            int c0 = col(minX[s]), c1 = col(maxX[s]);
+            int r0 = row(minY[s]), r1 = row(maxY[s]);
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++) {
+                    cellStart[r * cols + c + 1]++;
+                }
+            }
+        }
+        for (int c = 0; c < cellCount; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        if (cellItems.length < cellStart[cellCount]) {
+            cellItems = new int[cellStart[cellCount]];
+        }
+        System.arraycopy(cellStart, 0, cellFill, 0, cellCount);
+        for (int s = 0; s < segCount; s++) {
+            int c0 = col(minX[s]), c1 = col(maxX[s]);
+            int r0 = row(minY[s]), r1 = row(maxY[s]);
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++) {
+                    cellItems[cellFill[r * cols + c]++] = s;
+                }
+            }
+        }
+    }
+
+    private int col(double x) {
+        return Math.max(0, Math.min(cols - 1, (int) Math.floor((x - gridMinX) / cellSize)));
+    }
+
+    private int row(double y) {
+        return Math.max(0, Math.min(rows - 1, (int) Math.floor((y - gridMinY) / cellSize)));
+    }
+
+    private void intersect(double[] x, double[] y, int start, int i, int j) {
+        double ax = x[start + i], ay = y[start + i];
+        double bx = x[start + i + 1], by = y[start + i + 1];
+        double cx = x[start + j], cy = y[start + j];
+        double dx = x[start + j + 1], dy = y[start + j + 1];
+        if (Math.max(ay, by) < Math.min(cy, dy) || Math.max(cy, dy) < Math.min(ay, by))
+            return;
+
+        double rx = bx - ax, ry = by - ay;
+        double sx = dx - cx, sy = dy - cy;
+        double denom = rx * sy - ry * sx;
+        if (denom == 0)
+            return; // parallel
+        double t = ((cx - ax) * sy - (cy - ay) * sx) / denom;
+        double u = ((cx - ax) * ry - (cy - ay) * rx) / denom;
+        if (t < 0 || t > 1 || u < 0 || u > 1)
+            return;
+
+        if (intersectionCount == intersectionI.length) {
+            int size = intersectionCount * 2;
+            intersectionI = Arrays.copyOf(intersectionI, size);
+            intersectionJ = Arrays.copyOf(intersectionJ, size);
+            intersectionX = Arrays.copyOf(intersectionX, size);
+            intersectionY = Arrays.copyOf(intersectionY, size);
+            sortKeys = Arrays.copyOf(sortKeys, size);
+        }
+        intersectionI[intersectionCount] = i;
+        intersectionJ[intersectionCount] = j;
+        intersectionX[intersectionCount] = ax + t * rx;
+        intersectionY[intersectionCount] = ay + t * ry;
+        intersectionCount++;
+    }
+
+    private int collapseLoops(double[] x, double[] y, int start, int segCount, boolean closed) {
+        int n = segCount + 1;
+        // The loop between segment i and j is either the vertices i+1..j, or
+        // for closed paths possibly the rest of the path, wrapping around the
+        // first/last vertex. At most one wrapping loop is collapsed (they all
+        // overlap), and the other loops must not overlap it.
+        int wrapping = -1;
+        int wrappingSize = 0;
+        int candidates = 0;
+        for (int k = 0; k < intersectionCount; k++) {
+            int i = intersectionI[k], j = intersectionJ[k];
+            boolean innerInverted = invertedBefore[j] - invertedBefore[i + 1] > 0;
+            boolean outerInverted = closed
+                    && (invertedBefore[segCount] - invertedBefore[j + 1]) + invertedBefore[i] > 0;
+            int innerSize = j - i;
+            int outerSize = n - 1 - innerSize;
+            if (innerInverted && (!outerInverted || innerSize <= outerSize)) {
+                sortKeys[candidates++] = ((long) i << 32) | k;
+            } else if (outerInverted && outerSize > wrappingSize) {
+                wrapping = k;
+                wrappingSize = outerSize;
+            }
+        }
+
+        int collapsed = 0;
+        int firstFree = 0; // first vertex not part of a collapsed loop
+        int lastFree = n - 1;
+        if (wrapping != -1) {
+            int i = intersectionI[wrapping], j = intersectionJ[wrapping];
+            double px = intersectionX[wrapping], py = intersectionY[wrapping];
+            for (int v = j + 1; v < n; v++) {
+                x[start + v] = px;
+                y[start + v] = py;
+            }
+            for (int v = 0; v <= i; v++) {
+                x[start + v] = px;
+                y[start + v] = py;
+            }
+            firstFree = i + 1;
+            lastFree = j;
+            collapsed++;
+        }
+
+        // Outermost loops first: ordered by the first segment, and for the
+        // same first segment the one with the largest extent is used
+        Arrays.sort(sortKeys, 0, candidates);
+        int c = 0;
+        while (c < candidates) {
+            int k = (int) sortKeys[c];
+            int i = intersectionI[k];
+            int best = k;
+            for (c++; c < candidates && (int) (sortKeys[c] >>> 32) == i; c++) {
+                int other = (int) sortKeys[c];
+                if (intersectionJ[other] > intersectionJ[best]) {
+                    best = other;
+                }
+            }
+            int j = intersectionJ[best];
+            if (i + 1 < firstFree || j > lastFree) {
+                continue; // Inside or overlapping an already collapsed loop
+            }
+            double px = intersectionX[best], py = intersectionY[best];
+            for (int v = i + 1; v <= j; v++) {
+                x[start + v] = px;
+                y[start + v] = py;
+            }
+            firstFree = j + 1;
+            collapsed++;
+        }
+        return collapsed;
+    }
+
+    private void ensureCapacity(int segCount) {
+        if (minX.length < segCount) {
+            minX = new double[segCount];
+            minY = new double[segCount];
+            maxX = new double[segCount];
+            maxY = new double[segCount];
+            invertedBefore = new int[segCount + 1];
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Encoding: UTF-8
+ * Licence:  GPL v2 or later
+ * Author:   Ole Jørgen Brønner <olejorgen@yahoo.no>, 2011
+ */
+
+package org.openstreetmap.josm.plugins.parallelway;
+
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.gui.NavigatableComponent;
+
+/**
+ * Snapshot of the EastNorth to screen transformation of a map view.
+ *
+ * Same transformation as NavigatableComponent.getPoint, but without
+ * allocating and without rounding to int (which overflows when zoomed in far
+ * on long lines). Used to detect zooming and panning so projected geometry
+ * can be cached between repaints.
+ */
+class ViewTransform {
+    private double centerEast;
+    private double centerNorth;
+    private double scale;
+    private int width;
+    private int height;
+    private boolean valid;
+
+    /**
+     * @return true if the transformation changed since the last update (zoom, pan or resize)
+     */
+    public boolean update(NavigatableComponent nc) {
+        EastNorth center = nc.getCenter();
+        double newScale = nc.getScale();
+        int newWidth = nc.getWidth();
+        int newHeight = nc.getHeight();
+        if (valid && center.east() == centerEast && center.north() == centerNorth && newScale == scale
+                && newWidth == width && newHeight == height)
+            return false;
+        centerEast = center.east();
+        centerNorth = center.north();
+        scale = newScale;
+        width = newWidth;
+        height = newHeight;
+        valid = true;
+        return true;
+    }
+
+    public double x(double east) {
+        return (east - centerEast) / scale + width / 2.0;
+    }
+
+    public double y(double north) {
+        return (centerNorth - north) / scale + height / 2.0;
+    }
+
+    /**
+     * @return size of a pixel in EastNorth units
+     */
+    public double getScale() {
+        return scale;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Encoding: UTF-8
+ * Licence:  GPL v2 or later
+ * Author:   Ole Jørgen Brønner <olejorgen@yahoo.no>, 2011
+ */
+
+package org.openstreetmap.josm.plugins.parallelway;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Way;
+
+/**
+ * Snaps the offset to existing ways which are parallel to the reference
+ * segment, e.g. kerbs, building lines or the opposite carriageway.
+ *
+ * The segments of the ways around the source path are indexed once when the
+ * drag starts, so each drag event only looks at the segments near the cursor.
+ */
+class WaySnapper {
+    // Segments deviating more than this from the reference direction are not considered parallel
+    private static final double MAX_ANGLE_SIN = Math.sin(Math.toRadians(10));
+
+    private final SegmentIndex index;
+    private final int[] candidates;
+
+    private WaySnapper(SegmentIndex index) {
+        this.index = index;
+        candidates = new int[index.size()];
+    }
+
+    /**
+     * Indexes the segments of all usable ways (except the excluded ones) within the given EastNorth bounds.
+     */
+    public static WaySnapper build(DataSet ds, Collection<Way> exclude, double minX, double minY, double maxX,
+            double maxY) {
+        LatLon min = Main.proj.eastNorth2latlon(new EastNorth(minX, minY));
+        LatLon max = Main.proj.eastNorth2latlon(new EastNorth(maxX, maxY));
+        List<Way> ways = new ArrayList<Way>();
+        for (Way w : ds.searchWays(new BBox(min.lon(), min.lat(), max.lon(), max.lat()))) {
+            if (w.isUsable() && !exclude.contains(w)) {
+                ways.add(w);
+            }
+        }
+
+        int count = 0;
+        for (Way w : ways) {
+            count += Math.max(0, w.getNodesCount() - 1);
+        }
+        double[] x1 = new double[count], y1 = new double[count], x2 = new double[count], y2 = new double[count];
+        int n = 0;
+        for (Way w : ways) {
+            EastNorth prev = null;
+            for (int i = 0; i < w.getNodesCount(); i++) {
+                EastNorth en = w.getNode(i).getEastNorth();
+                if (prev != null && en != null && overlaps(prev, en, minX, minY, maxX, maxY)) {
+                    x1[n] = prev.getX();
+                    y1[n] = prev.getY();
+                    x2[n] = en.getX();
+                    y2[n] = en.getY();
+                    n++;
+                }
+                prev = en;
+            }
+        }
+        return new WaySnapper(new SegmentIndex(x1, y1, x2, y2, n));
+    }
+
+    private static boolean overlaps(EastNorth a, EastNorth b, double minX, double minY, double maxX, double maxY) {
+        return Math.max(a.getX(), b.getX()) >= minX && Math.min(a.getX(), b.getX()) <= maxX
+                && Math.max(a.getY(), b.getY()) >= minY && Math.min(a.getY(), b.getY()) <= maxY;
+    }
+
+    /**
+     * Finds the offset of the indexed way closest to the cursor, among those
+     * parallel to the reference segment a-b and within tolerance of the cursor.
+     *
+     * @param d the unsnapped offset, positive to the left of a-b
+     * @return the offset of the closest parallel way, or NaN if there is none
+     */
+    public double snap(double ax, double ay, double bx, double by, double px, double py, double d,
+            double tolerance) {
+        double ux = bx - ax, uy = by - ay;
+        double len = Math.sqrt(ux * ux + uy * uy);
+        if (len == 0)
+            return Double.NaN;
+        ux /= len;
+        uy /= len;
+
+        double best = Double.NaN;
+        int n = index.query(px, py, tolerance, candidates);
+        for (int k = 0; k < n; k++) {
+            int i = candidates[k];
+            double vx = index.getX2(i) - index.getX1(i), vy = index.getY2(i) - index.getY1(i);
+            double vlen = Math.sqrt(vx * vx + vy * vy);
+            if (vlen == 0 || Math.abs(ux * vy - uy * vx) > MAX_ANGLE_SIN * vlen) {
+                continue;
+            }
+            // Offset of the point on the candidate closest to the cursor
+            double t = ((px - index.getX1(i)) * vx + (py - index.getY1(i)) * vy) / (vlen * vlen);
+            t = Math.max(0, Math.min(1, t));
+            double qx = index.getX1(i) + t * vx, qy = index.getY1(i) + t * vy;
+            double offset = (qx - ax) * -uy + (qy - ay) * ux;
+            if (Double.isNaN(best) || Math.abs(offset - d) < Math.abs(best - d)) {
+                best = offset;
+            }
+        }
+        return best;
+    }
+}